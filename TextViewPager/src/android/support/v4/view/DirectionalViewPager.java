@@ -17,6 +17,7 @@
 
 package android.support.v4.view;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.DataSetObserver;
 import android.os.Build;
@@ -31,6 +32,9 @@ import android.view.ViewGroup;
 import android.widget.Scroller;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 
 /**
  * Layout manager that allows the user to flip horizontally or vertically
@@ -47,7 +51,29 @@ public class DirectionalViewPager extends ViewPager {
     public static final int HORIZONTAL = 0;
     public static final int VERTICAL = 1;
 
+    private static final int DEFAULT_OFFSCREEN_PAGES = 1;
+    /**
+     * Fling velocity, in dips per second, for each extra page kept ahead in
+     * predictive mode.
+     */
+    private static final int PREDICTIVE_VELOCITY_PER_PAGE = 2500;
+    private static final int MAX_PREDICTED_PAGES = 3;
+
+    private static final Comparator<ItemInfo> COMPARATOR = new Comparator<ItemInfo>() {
+        @Override
+        public int compare(ItemInfo lhs, ItemInfo rhs) {
+            return lhs.position - rhs.position;
+        }
+    };
+
     private final ArrayList<ItemInfo> mItems = new ArrayList<ItemInfo>();
+    /**
+     * The items by their object, so a child that is its own object is found
+     * without asking the adapter about every item.
+     */
+    private final IdentityHashMap<Object, ItemInfo> mItemsByObject =
+            new IdentityHashMap<Object, ItemInfo>();
+    private final ArrayList<ItemInfo> mNewItems = new ArrayList<ItemInfo>();
 
     private PagerAdapter mAdapter;
     private int mCurItem; // Index of currently displayed page.
@@ -61,6 +87,7 @@ public class DirectionalViewPager extends ViewPager {
     private boolean mInLayout;
 
     private boolean mScrollingCacheEnabled;
+    private boolean mHardwareLayersEnabled = true;
 
     private boolean mPopulatePending;
     private boolean mScrolling;
@@ -99,6 +126,16 @@ public class DirectionalViewPager extends ViewPager {
 
     private int mScrollState = SCROLL_STATE_IDLE;
 
+    private int mOffscreenPageLimit = DEFAULT_OFFSCREEN_PAGES;
+    private boolean mPredictivePaging;
+    private int mPredictiveVelocityPerPage;
+    /**
+     * Direction of the last page turn, and the extra pages kept in that
+     * direction in predictive mode.
+     */
+    private int mTravelDirection;
+    private int mPredictedPages;
+
     public DirectionalViewPager(Context context) {
         super(context);
         initViewPager();
@@ -127,9 +164,15 @@ public class DirectionalViewPager extends ViewPager {
         mTouchSlop = ViewConfigurationCompat.getScaledPagingTouchSlop(configuration);
         mMinimumVelocity = configuration.getScaledMinimumFlingVelocity();
         mMaximumVelocity = configuration.getScaledMaximumFlingVelocity();
+        final float density = getContext().getResources().getDisplayMetrics().density;
+        mPredictiveVelocityPerPage = (int) (PREDICTIVE_VELOCITY_PER_PAGE * density);
     }
 
     private void setScrollState(int newState) {
+        if (newState == SCROLL_STATE_IDLE) {
+            // Pages are only composited from layers while they move
+            setScrollingCacheEnabled(false);
+        }
         if (mScrollState == newState) {
             return;
         }
@@ -260,6 +303,7 @@ public class DirectionalViewPager extends ViewPager {
         int dy = y - sy;
         if (dx == 0 && dy == 0) {
             completeScroll();
+            setScrollState(SCROLL_STATE_IDLE);
             return;
         }
 
@@ -272,9 +316,7 @@ public class DirectionalViewPager extends ViewPager {
 
     @Override
     android.support.v4.view.ViewPager.ItemInfo addNewItem(int position, int index) {
-        ItemInfo ii = new ItemInfo();
-        ii.position = position;
-        ii.object = mAdapter.instantiateItem(this, position);
+        ItemInfo ii = newItem(position);
         if (index < 0) {
             mItems.add(ii);
         } else {
@@ -283,26 +325,50 @@ public class DirectionalViewPager extends ViewPager {
         return ii;
     }
 
+    private ItemInfo newItem(int position) {
+        ItemInfo ii = new ItemInfo();
+        ii.position = position;
+        ii.object = mAdapter.instantiateItem(this, position);
+        mItemsByObject.put(ii.object, ii);
+        return ii;
+    }
+
+    private void destroyItem(ItemInfo ii) {
+        mItemsByObject.remove(ii.object);
+        mAdapter.destroyItem(this, ii.position, ii.object);
+    }
+
     @Override
     void dataSetChanged() {
         // This method only gets called if our observer is attached, so mAdapter
         // is non-null.
 
-        boolean needPopulate = mItems.isEmpty() && mAdapter.getCount() > 0;
+        // Populate if the adapter has grown to fill more of the window around
+        // the current page
+        final int count = mAdapter.getCount();
+        boolean needPopulate = mItems.size() < 2 * mOffscreenPageLimit + 1
+                && mItems.size() < count;
         int newCurrItem = -1;
+        boolean needSort = false;
 
-        for (int i = 0; i < mItems.size(); i++) {
+        // Kept items are moved down over the removed ones, rather than
+        // removing each from the middle of the list
+        final int size = mItems.size();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
             final ItemInfo ii = mItems.get(i);
             final int newPos = mAdapter.getItemPosition(ii.object);
 
+            if (newPos != PagerAdapter.POSITION_NONE) {
+                mItems.set(kept++, ii);
+            }
+
             if (newPos == PagerAdapter.POSITION_UNCHANGED) {
                 continue;
             }
 
             if (newPos == PagerAdapter.POSITION_NONE) {
-                mItems.remove(i);
-                i--;
-                mAdapter.destroyItem(this, ii.position, ii.object);
+                destroyItem(ii);
                 needPopulate = true;
 
                 if (mCurItem == ii.position) {
@@ -320,8 +386,15 @@ public class DirectionalViewPager extends ViewPager {
 
                 ii.position = newPos;
                 needPopulate = true;
+                needSort = true;
             }
         }
+        while (mItems.size() > kept) {
+            mItems.remove(mItems.size() - 1);
+        }
+        if (needSort) {
+            Collections.sort(mItems, COMPARATOR);
+        }
 
         if (newCurrItem >= 0) {
             // TODO This currently causes a jump.
@@ -359,54 +432,59 @@ public class DirectionalViewPager extends ViewPager {
 
         mAdapter.startUpdate(this);
 
-        final int startPos = mCurItem > 0 ? mCurItem - 1 : mCurItem;
+        // Keep the offscreen pages on either side, and more ahead in the
+        // direction of travel when predicting
+        int pagesBefore = mOffscreenPageLimit;
+        int pagesAfter = mOffscreenPageLimit;
+        if (mTravelDirection < 0) {
+            pagesBefore += mPredictedPages;
+        } else if (mTravelDirection > 0) {
+            pagesAfter += mPredictedPages;
+        }
+
         final int count = mAdapter.getCount();
-        final int endPos = mCurItem < (count - 1) ? mCurItem + 1 : count - 1;
+        final int startPos = Math.max(0, mCurItem - pagesBefore);
+        final int endPos = Math.min(count - 1, mCurItem + pagesAfter);
 
         if (DEBUG)
             Log.v(TAG, "populating: startPos=" + startPos + " endPos=" + endPos);
 
-        // Add and remove pages in the existing list.
-        int lastPos = -1;
-        for (int i = 0; i < mItems.size(); i++) {
-            ItemInfo ii = mItems.get(i);
-            if ((ii.position < startPos || ii.position > endPos) && !ii.scrolling) {
-                if (DEBUG)
-                    Log.i(TAG, "removing: " + ii.position + " @ " + i);
-                mItems.remove(i);
-                i--;
-                mAdapter.destroyItem(this, ii.position, ii.object);
-            } else if (lastPos < endPos && ii.position > startPos) {
-                // The next item is outside of our range, but we have a gap
-                // between it and the last item where we want to have a page
-                // shown. Fill in the gap.
-                lastPos++;
-                if (lastPos < startPos) {
-                    lastPos = startPos;
-                }
-                while (lastPos <= endPos && lastPos < ii.position) {
+        // Merge the existing pages, in position order, with new pages for
+        // the gaps in the window. Pages outside the window are removed,
+        // unless they are still scrolling.
+        final ArrayList<ItemInfo> newItems = mNewItems;
+        final int size = mItems.size();
+        int index = 0;
+        for (int pos = startPos; pos <= endPos; pos++) {
+            for (; index < size && mItems.get(index).position <= pos; index++) {
+                final ItemInfo ii = mItems.get(index);
+                if ((ii.position < startPos || ii.position > endPos) && !ii.scrolling) {
                     if (DEBUG)
-                        Log.i(TAG, "inserting: " + lastPos + " @ " + i);
-                    addNewItem(lastPos, i);
-                    lastPos++;
-                    i++;
+                        Log.i(TAG, "removing: " + ii.position + " @ " + index);
+                    destroyItem(ii);
+                } else {
+                    newItems.add(ii);
                 }
             }
-            lastPos = ii.position;
+            if (newItems.isEmpty() || newItems.get(newItems.size() - 1).position != pos) {
+                if (DEBUG)
+                    Log.i(TAG, "inserting: " + pos + " @ " + newItems.size());
+                newItems.add(newItem(pos));
+            }
         }
-
-        // Add any new pages we need at the end.
-        lastPos = mItems.size() > 0 ? mItems.get(mItems.size() - 1).position : -1;
-        if (lastPos < endPos) {
-            lastPos++;
-            lastPos = lastPos > startPos ? lastPos : startPos;
-            while (lastPos <= endPos) {
+        for (; index < size; index++) {
+            final ItemInfo ii = mItems.get(index);
+            if (!ii.scrolling) {
                 if (DEBUG)
-                    Log.i(TAG, "appending: " + lastPos);
-                addNewItem(lastPos, -1);
-                lastPos++;
+                    Log.i(TAG, "removing: " + ii.position + " @ " + index);
+                destroyItem(ii);
+            } else {
+                newItems.add(ii);
             }
         }
+        mItems.clear();
+        mItems.addAll(newItems);
+        newItems.clear();
 
         if (DEBUG) {
             Log.i(TAG, "Current page list:");
@@ -418,6 +496,52 @@ public class DirectionalViewPager extends ViewPager {
         mAdapter.finishUpdate(this);
     }
 
+    @Override
+    public int getOffscreenPageLimit() {
+        return mOffscreenPageLimit;
+    }
+
+    /**
+     * Set the number of pages that should be retained to either side of the
+     * current page in the view hierarchy in an idle state. Pages beyond this
+     * limit will be recreated from the adapter when needed.
+     *
+     * @param limit How many pages will be kept offscreen in an idle state.
+     */
+    @Override
+    public void setOffscreenPageLimit(int limit) {
+        if (limit < DEFAULT_OFFSCREEN_PAGES) {
+            Log.w(TAG, "Requested offscreen page limit " + limit + " too small; defaulting to "
+                    + DEFAULT_OFFSCREEN_PAGES);
+            limit = DEFAULT_OFFSCREEN_PAGES;
+        }
+        if (limit != mOffscreenPageLimit) {
+            mOffscreenPageLimit = limit;
+            populate();
+        }
+    }
+
+    public boolean isPredictivePagingEnabled() {
+        return mPredictivePaging;
+    }
+
+    /**
+     * Set whether pages beyond the offscreen page limit are created ahead of
+     * a fling or of repeated page turns, in the direction of travel. The
+     * faster the fling, the more pages are created, up to
+     * {@value #MAX_PREDICTED_PAGES}.
+     *
+     * @param enabled true to widen the window of pages in the direction of
+     *            travel.
+     */
+    public void setPredictivePagingEnabled(boolean enabled) {
+        mPredictivePaging = enabled;
+        if (!enabled && mPredictedPages > 0) {
+            mPredictedPages = 0;
+            populate();
+        }
+    }
+
     public int getOrientation() {
         return mOrientation;
     }
@@ -467,17 +591,41 @@ public class DirectionalViewPager extends ViewPager {
             super.addView(child, index, params);
         }
 
-        if (USE_CACHE) {
-            if (child.getVisibility() != GONE) {
-                child.setDrawingCacheEnabled(mScrollingCacheEnabled);
-            } else {
-                child.setDrawingCacheEnabled(false);
-            }
+        enableScrollingCache(child, mScrollingCacheEnabled && child.getVisibility() != GONE);
+    }
+
+    public boolean isHardwareLayersEnabled() {
+        return mHardwareLayersEnabled;
+    }
+
+    /**
+     * Set whether pages are drawn into hardware layers while they are dragged
+     * or settle, so that each frame of the scroll composites the layers rather
+     * than drawing the pages again. The pager sets the layer type of its pages
+     * while this is enabled. It has no effect unless the window is hardware
+     * accelerated. Enabled by default.
+     *
+     * @param enabled true to use hardware layers while scrolling.
+     */
+    public void setHardwareLayersEnabled(boolean enabled) {
+        if (enabled == mHardwareLayersEnabled) {
+            return;
         }
+
+        final boolean scrolling = mScrollingCacheEnabled;
+        setScrollingCacheEnabled(false);
+        mHardwareLayersEnabled = enabled;
+        setScrollingCacheEnabled(scrolling);
     }
 
     @Override
     android.support.v4.view.ViewPager.ItemInfo infoForChild(View child) {
+        // Pages are usually their own objects
+        final ItemInfo item = mItemsByObject.get(child);
+        if (item != null && mAdapter.isViewFromObject(child, item.object)) {
+            return item;
+        }
+
         for (int i = 0; i < mItems.size(); i++) {
             ItemInfo ii = mItems.get(i);
             if (mAdapter.isViewFromObject(child, ii.object)) {
@@ -938,16 +1086,19 @@ public class DirectionalViewPager extends ViewPager {
                     }
 
                     mPopulatePending = true;
+                    final int item;
                     if ((Math.abs(initialVelocity) > mMinimumVelocity)
                             || Math.abs(mInitialMotion - lastMotion) >= sizeOverThree) {
                         if (lastMotion > mInitialMotion) {
-                            setCurrentItemInternal(mCurItem - 1, true, true);
+                            item = mCurItem - 1;
                         } else {
-                            setCurrentItemInternal(mCurItem + 1, true, true);
+                            item = mCurItem + 1;
                         }
                     } else {
-                        setCurrentItemInternal(mCurItem, true, true);
+                        item = mCurItem;
                     }
+                    predictTravel(item - mCurItem, initialVelocity);
+                    setCurrentItemInternal(item, true, true);
 
                     mActivePointerId = INVALID_POINTER;
                     endDrag();
@@ -1002,6 +1153,31 @@ public class DirectionalViewPager extends ViewPager {
         }
     }
 
+    /**
+     * Works out how many extra pages to keep ahead of a page turn, from the
+     * fling velocity. Repeated turns in the same direction keep at least one.
+     *
+     * @param direction the direction of the turn, or 0 if the page is kept.
+     * @param velocity the fling velocity, in pixels per second.
+     */
+    private void predictTravel(int direction, int velocity) {
+        if (!mPredictivePaging || direction == 0) {
+            mTravelDirection = direction;
+            mPredictedPages = 0;
+            return;
+        }
+
+        int pages = Math.abs(velocity) / mPredictiveVelocityPerPage;
+        if (direction == mTravelDirection && Math.abs(velocity) > mMinimumVelocity) {
+            pages = Math.max(pages, 1);
+        }
+        mTravelDirection = direction;
+        mPredictedPages = Math.min(pages, MAX_PREDICTED_PAGES);
+        if (DEBUG)
+            Log.v(TAG, "predictTravel: direction=" + direction + " velocity=" + velocity
+                    + " pages=" + mPredictedPages);
+    }
+
     private void endDrag() {
         mIsBeingDragged = false;
         mIsUnableToDrag = false;
@@ -1015,18 +1191,35 @@ public class DirectionalViewPager extends ViewPager {
     private void setScrollingCacheEnabled(boolean enabled) {
         if (mScrollingCacheEnabled != enabled) {
             mScrollingCacheEnabled = enabled;
-            if (USE_CACHE) {
-                final int size = getChildCount();
-                for (int i = 0; i < size; ++i) {
-                    final View child = getChildAt(i);
-                    if (child.getVisibility() != GONE) {
-                        child.setDrawingCacheEnabled(enabled);
-                    }
+            final int size = getChildCount();
+            for (int i = 0; i < size; ++i) {
+                final View child = getChildAt(i);
+                if (child.getVisibility() != GONE) {
+                    enableScrollingCache(child, enabled);
                 }
             }
         }
     }
 
+    private void enableScrollingCache(View child, boolean enabled) {
+        if (mHardwareLayersEnabled && isHardwareAcceleratedCompat()) {
+            ViewCompat.setLayerType(child, enabled ? ViewCompat.LAYER_TYPE_HARDWARE
+                    : ViewCompat.LAYER_TYPE_NONE, null);
+        } else if (USE_CACHE) {
+            child.setDrawingCacheEnabled(enabled);
+        }
+    }
+
+    private boolean isHardwareAcceleratedCompat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && isHardwareAcceleratedHoneycomb();
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private boolean isHardwareAcceleratedHoneycomb() {
+        return isHardwareAccelerated();
+    }
+
     private class PagerObserver extends DataSetObserver {
         @Override
         public void onChanged() {
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.graphics.Typeface;
+import android.support.v4.util.LruCache;
+import android.text.TextPaint;
+import android.util.Log;
+
+/**
+ * Memory-bounded LRU cache of the advances of the characters of each
+ * paragraph, keyed by the paragraph and the paint it is measured with. The advances don't depend on the width the text is laid out in, so
+ * once a text has been paginated, paginating it again for another width, such
+ * as after a rotation, breaks its lines by adding up cached advances without
+ * measuring any text.<br>
+ * <br>
+ * The cache is safe to use from several threads at once.
+ *
+ * @see Paginator#setAdvanceCache(AdvanceCache)
+ * @author paulburke (ipaulpro)
+ */
+public class AdvanceCache {
+
+    private static final String TAG = "AdvanceCache";
+    private static final boolean DEBUG = false;
+
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final LruCache<Key, float[]> mCache;
+
+    /**
+     * @param maxSize the maximum size of the cached advances and of the
+     *            paragraphs they are kept for, in bytes.
+     */
+    public AdvanceCache(int maxSize) {
+        mCache = new LruCache<Key, float[]>(maxSize) {
+            @Override
+            protected int sizeOf(Key key, float[] value) {
+                // The key holds a copy of the paragraph
+                return value.length * 6 + ENTRY_OVERHEAD;
+            }
+        };
+    }
+
+    /**
+     * Returns the advance of each character of a paragraph, measuring them
+     * only if the same paragraph has not been measured with the same paint.
+     *
+     * @param text the text containing the paragraph.
+     * @param start the offset the paragraph starts at.
+     * @param end the offset the paragraph ends at.
+     * @param paint the paint to measure with.
+     * @return the advances, which must not be modified.
+     */
+    public float[] getAdvances(CharSequence text, int start, int end, TextPaint paint) {
+        final Key key = new Key(text, start, end, paint);
+        float[] advances = mCache.get(key);
+        if (advances == null) {
+            advances = new float[end - start];
+            paint.getTextWidths(text, start, end, advances);
+            mCache.put(key.copy(), advances);
+            if (DEBUG) Log.d(TAG, "getAdvances measured " + (end - start) + " characters");
+        }
+        return advances;
+    }
+
+    /**
+     * Releases all cached advances.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * The content of a paragraph and the attributes of the paint that affect
+     * its advances. A key made to look up a paragraph refers to the text
+     * being measured, which may be a buffer that is reused, so the key kept in
+     * the cache holds a copy of the paragraph.
+     */
+    private static final class Key {
+        private final CharSequence mText;
+        private final int mStart;
+        private final long mHash;
+        private final int mLength;
+        private final float mTextSize;
+        private final float mTextScaleX;
+        private final float mTextSkewX;
+        private final Typeface mTypeface;
+        private final int mFlags;
+
+        Key(CharSequence text, int start, int end, TextPaint paint) {
+            // FNV-1a, so that most paragraphs that differ are told apart
+            // without comparing their characters
+            long hash = 0xcbf29ce484222325L;
+            for (int i = start; i < end; i++) {
+                hash ^= text.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            mText = text;
+            mStart = start;
+            mHash = hash;
+            mLength = end - start;
+            mTextSize = paint.getTextSize();
+            mTextScaleX = paint.getTextScaleX();
+            mTextSkewX = paint.getTextSkewX();
+            mTypeface = paint.getTypeface();
+            mFlags = paint.getFlags();
+        }
+
+        private Key(Key key, String text) {
+            mText = text;
+            mStart = 0;
+            mHash = key.mHash;
+            mLength = key.mLength;
+            mTextSize = key.mTextSize;
+            mTextScaleX = key.mTextScaleX;
+            mTextSkewX = key.mTextSkewX;
+            mTypeface = key.mTypeface;
+            mFlags = key.mFlags;
+        }
+
+        /**
+         * @return a key holding a copy of the paragraph, to keep in the
+         *         cache.
+         */
+        Key copy() {
+            return new Key(this, mText.subSequence(mStart, mStart + mLength).toString());
+        }
+
+        private boolean isSameText(Key other) {
+            for (int i = 0; i < mLength; i++) {
+                if (mText.charAt(mStart + i) != other.mText.charAt(other.mStart + i))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            final Key other = (Key) o;
+            return mHash == other.mHash && mLength == other.mLength
+                    && mTextSize == other.mTextSize && mTextScaleX == other.mTextScaleX
+                    && mTextSkewX == other.mTextSkewX && mTypeface == other.mTypeface
+                    && mFlags == other.mFlags && isSameText(other);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (mHash ^ (mHash >>> 32));
+            result = 31 * result + mLength;
+            result = 31 * result + Float.floatToIntBits(mTextSize);
+            return result;
+        }
+    }
+}
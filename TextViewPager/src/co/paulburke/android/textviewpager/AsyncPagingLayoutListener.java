@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.ViewTreeObserver;
+import android.view.ViewTreeObserver.OnGlobalLayoutListener;
+import android.widget.TextView;
+
+import co.paulburke.android.textviewpager.PagingLayoutListener.OnPageMeasureListener;
+import co.paulburke.android.textviewpager.Paginator.OnAnchoredPageMeasureListener;
+import co.paulburke.android.textviewpager.Paginator.OnPageBatchMeasureListener;
+
+/**
+ * An {@link OnGlobalLayoutListener} that waits for the view to be given a size
+ * and then hands the text to a {@link Paginator}, instead of measuring a
+ * layout of the full text on the UI thread like {@link PagingLayoutListener}
+ * does. The view is never given more text than fits on the first page, which
+ * is shown right away by measuring only a short prefix of the text. Text read
+ * from a {@link TextSource} is shown once the first batch of pages has been
+ * measured.<br>
+ * <br>
+ * If the listener is an {@link OnPageBatchMeasureListener}, it is also
+ * notified of each batch of pages measured before pagination completes. If it
+ * is an {@link OnAnchoredPageMeasureListener}, it is notified of the pages
+ * around the offset set with {@link #setAnchor(int)}.<br>
+ * <br>
+ * A listener registered with {@link #attach()} removes itself from the
+ * view's {@link android.view.ViewTreeObserver} once the pages have been
+ * measured, so it doesn't keep the view and the text reachable from the
+ * window. Call {@link #setViewSize(int, int)} when the view is resized, to
+ * paginate the text again for the new size.
+ *
+ * @author paulburke (ipaulpro)
+ */
+public class AsyncPagingLayoutListener implements OnGlobalLayoutListener {
+
+    /** The view, or null once it has been detached. */
+    private TextView mView;
+    private boolean mAttached;
+    private TextSource mSource;
+    private final Paginator mPaginator;
+    private final OnPageMeasureListener mListener;
+
+    private PagingParams mParams;
+    private PagingParams mFirstPageParams;
+    private int mFirstPageEnd = -1;
+    private int mAnchor;
+
+    private final OnAnchoredPageMeasureListener mPaginatorListener = new OnAnchoredPageMeasureListener() {
+        @Override
+        public void onAnchoredPageMeasure(int[] offsets, int measuredEnd, int anchorPage,
+                int estimatedFirstPage, int estimatedCount) {
+            if (mListener instanceof OnAnchoredPageMeasureListener)
+                ((OnAnchoredPageMeasureListener) mListener).onAnchoredPageMeasure(offsets,
+                        measuredEnd, anchorPage, estimatedFirstPage, estimatedCount);
+        }
+
+        @Override
+        public void onPageBatchMeasure(int[] offsets, int measuredEnd, int estimatedCount) {
+            setFirstPageEnd(offsets.length > 1 ? offsets[1] : measuredEnd);
+
+            if (mListener instanceof OnPageBatchMeasureListener)
+                ((OnPageBatchMeasureListener) mListener).onPageBatchMeasure(offsets, measuredEnd,
+                        estimatedCount);
+        }
+
+        @Override
+        public void onPageMeasure(int[] offsets, int totalLines, int linesPerPage) {
+            setFirstPageEnd(offsets.length > 1 ? offsets[1] : mSource.length());
+            // Nothing more is measured until the view is resized
+            unregister();
+
+            if (mListener != null)
+                mListener.onPageMeasure(offsets, totalLines, linesPerPage);
+        }
+    };
+
+    /**
+     * @param view the view that will display the first page.
+     * @param text the full text to paginate.
+     * @param paginator the {@link Paginator} to run the measurement on.
+     * @param listener the {@link OnPageMeasureListener} to listen for offset
+     *            calculations.
+     */
+    public AsyncPagingLayoutListener(TextView view, CharSequence text, Paginator paginator,
+            OnPageMeasureListener listener) {
+        this(view, TextSource.of(text), paginator, listener);
+    }
+
+    /**
+     * @param view the view that will display the first page.
+     * @param source the source of the full text to paginate.
+     * @param paginator the {@link Paginator} to run the measurement on.
+     * @param listener the {@link OnPageMeasureListener} to listen for offset
+     *            calculations.
+     */
+    public AsyncPagingLayoutListener(TextView view, TextSource source, Paginator paginator,
+            OnPageMeasureListener listener) {
+        mView = view;
+        mSource = source;
+        mPaginator = paginator;
+        mListener = listener;
+    }
+
+    /**
+     * Registers the listener with the view's {@link android.view.ViewTreeObserver},
+     * until the pages have been measured.
+     */
+    public void attach() {
+        if (mView != null && !mAttached) {
+            mView.getViewTreeObserver().addOnGlobalLayoutListener(this);
+            mAttached = true;
+        }
+    }
+
+    /**
+     * Unregisters the listener and lets go of the view, which can then be
+     * reused for other text. Pagination in progress continues, and edits of
+     * the text are still paginated, but the first page is no longer shown.
+     * Must be called while the view is still attached to its window.
+     */
+    public void detach() {
+        unregister();
+        mView = null;
+        mFirstPageParams = null;
+    }
+
+    /**
+     * Paginates the text again for a new size of the view. If the view is
+     * still held, it is measured on its next layout; otherwise the new size
+     * is applied to the parameters the text was last paginated with.
+     *
+     * @param width the new width of the view.
+     * @param height the new height of the view.
+     */
+    public void setViewSize(int width, int height) {
+        if (mView != null) {
+            attach();
+            return;
+        }
+        if (mParams == null)
+            return;
+
+        final PagingParams params = mParams.withViewSize(width, height);
+        if (params != null && !params.equals(mParams)) {
+            mParams = params;
+            mPaginator.paginate(mSource, params, mPaginatorListener);
+        }
+    }
+
+    private void unregister() {
+        if (mAttached) {
+            final ViewTreeObserver observer = mView.getViewTreeObserver();
+            if (observer.isAlive()) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                    removeListenerJellyBean(observer);
+                else
+                    removeListenerLegacy(observer);
+            }
+            mAttached = false;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeListenerJellyBean(ViewTreeObserver observer) {
+        observer.removeOnGlobalLayoutListener(this);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void removeListenerLegacy(ViewTreeObserver observer) {
+        observer.removeGlobalOnLayoutListener(this);
+    }
+
+    @Override
+    public void onGlobalLayout() {
+        if (mView == null)
+            return;
+
+        final PagingParams params = PagingParams.fromTextView(mView);
+        if (params == null || params.equals(mParams)) {
+            // The text has been paginated for this size already
+            if (params != null && !mPaginator.isRunning())
+                unregister();
+            return;
+        }
+
+        mParams = params;
+        showFirstPage(params);
+        if (mAnchor > 0) {
+            mPaginator.paginateFrom(mSource, params, mAnchor, mPaginatorListener);
+            mAnchor = 0;
+        } else {
+            mPaginator.paginate(mSource, params, mPaginatorListener);
+        }
+    }
+
+    /**
+     * Sets a character offset to measure the pages around before the rest of
+     * the text, the next time the text is paginated.
+     *
+     * @param offset the character offset, or 0 to paginate from the start.
+     * @see Paginator#paginateFrom(TextSource, PagingParams, int, OnPageMeasureListener)
+     */
+    public void setAnchor(int offset) {
+        mAnchor = offset;
+    }
+
+    /**
+     * Replaces the text with an edited version, and paginates it again from
+     * the page before the edit if it has already been paginated.
+     *
+     * @param source the source of the edited text.
+     * @param start the offset at which the text was edited.
+     * @param before the number of characters replaced at {@code start}.
+     * @param after the number of characters that replaced them.
+     * @see Paginator#paginateEdit(TextSource, int, int, int, OnPageMeasureListener)
+     */
+    public void setEditedText(TextSource source, int start, int before, int after) {
+        setTextSource(source, -1);
+        if (mParams != null)
+            mPaginator.paginateEdit(source, start, before, after, mPaginatorListener);
+    }
+
+    /**
+     * Replaces the text without paginating it again, and shows its first page.
+     *
+     * @param source the source of the new text.
+     * @param firstPageEnd the offset the first page ends at, or -1 to measure
+     *            it.
+     */
+    void setTextSource(TextSource source, int firstPageEnd) {
+        mSource = source;
+        mFirstPageEnd = -1;
+        if (firstPageEnd >= 0) {
+            setFirstPageEnd(firstPageEnd);
+            return;
+        }
+
+        // The first page may have changed, so measure it again
+        final PagingParams firstPageParams = mFirstPageParams;
+        mFirstPageParams = null;
+        if (firstPageParams != null)
+            showFirstPage(firstPageParams);
+    }
+
+    /**
+     * Shows the first page in the view before it has been laid out, using the
+     * size it is going to be given.
+     *
+     * @param width the width the view will be laid out with.
+     * @param height the height the view will be laid out with.
+     */
+    public void showFirstPage(int width, int height) {
+        if (mView == null)
+            return;
+
+        final PagingParams params = PagingParams.fromTextView(mView, width, height);
+        if (params != null)
+            showFirstPage(params);
+    }
+
+    private void showFirstPage(PagingParams params) {
+        // Only text in memory can be measured without waiting for a scan
+        final CharSequence text = mSource.asCharSequence();
+        if (mView == null || text == null || params.equals(mFirstPageParams))
+            return;
+
+        mFirstPageParams = params;
+        setFirstPageEnd(Paginator.measureFirstPage(text, params));
+    }
+
+    private void setFirstPageEnd(int end) {
+        if (mView != null && end != mFirstPageEnd) {
+            mFirstPageEnd = end;
+            PageTextLoader.setText(mView, mSource, 0, end);
+        }
+    }
+
+}
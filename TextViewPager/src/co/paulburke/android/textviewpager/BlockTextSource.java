@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.support.v4.util.LruCache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link TextSource} read as a sequence of encoded blocks, each of which can
+ * be decoded on its own. While the source is scanned, the character and byte
+ * offset of each block is recorded, so that any window of the text can be read
+ * back by decoding only the blocks it spans. A few recently decoded blocks are
+ * kept in memory. Blocks read in order, such as when a scan is replayed, are
+ * read from a single stream.
+ *
+ * @author paulburke (ipaulpro)
+ */
+abstract class BlockTextSource extends TextSource {
+
+    /** Number of decoded blocks kept in memory. */
+    private static final int RESIDENT_BLOCKS = 8;
+
+    private final Charset mCharset;
+    private final LruCache<Integer, String> mBlocks = new LruCache<Integer, String>(
+            RESIDENT_BLOCKS);
+
+    /** Character offset of each block, with the end of the last one after it. */
+    private int[] mCharStarts = new int[17];
+    /** Byte offset of each block, with the end of the last one after it. */
+    private long[] mByteStarts = new long[17];
+    private int mBlockCount;
+    private boolean mComplete;
+
+    BlockTextSource(Charset charset) {
+        mCharset = charset;
+    }
+
+    /**
+     * @return a new stream of the encoded blocks, from the first byte.
+     * @throws IOException if the stream can't be opened.
+     */
+    abstract InputStream openBlockStream() throws IOException;
+
+    /**
+     * Continues reading the text from the end of the last block, adding each
+     * new block with {@link #addBlock(String, int, OnChunkListener)}.
+     *
+     * @param byteStart the byte offset to continue from.
+     * @param listener notified of each new block.
+     * @return true if the end of the text was reached.
+     * @throws IOException if the source can't be read.
+     */
+    abstract boolean readBlocks(long byteStart, OnChunkListener listener) throws IOException;
+
+    Charset getCharset() {
+        return mCharset;
+    }
+
+    @Override
+    public synchronized int length() {
+        return mComplete ? mCharStarts[mBlockCount] : -1;
+    }
+
+    @Override
+    public boolean scan(OnChunkListener listener) throws IOException {
+        // Replay the blocks that have already been read
+        final int count;
+        synchronized (this) {
+            count = mBlockCount;
+        }
+        final BlockReader reader = new BlockReader();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (!listener.onChunk(reader.getBlock(i), getCharStart(i)))
+                    return false;
+            }
+        } finally {
+            reader.close();
+        }
+
+        final long byteEnd;
+        synchronized (this) {
+            if (mComplete)
+                return true;
+            byteEnd = mByteStarts[mBlockCount];
+        }
+
+        if (!readBlocks(byteEnd, listener))
+            return false;
+
+        synchronized (this) {
+            mComplete = true;
+        }
+        return true;
+    }
+
+    @Override
+    public CharSequence getText(int start, int end) throws IOException {
+        if (start == end)
+            return "";
+
+        int block = findBlock(start);
+        if (block < 0 || end > getCharStart(getBlockCount()))
+            throw new IndexOutOfBoundsException("Text " + start + "-" + end
+                    + " has not been read");
+
+        final StringBuilder builder = new StringBuilder(end - start);
+        final BlockReader reader = new BlockReader();
+        try {
+            while (start < end) {
+                final int blockStart = getCharStart(block);
+                final String text = reader.getBlock(block);
+                final int blockEnd = blockStart + text.length();
+                builder.append(text, start - blockStart, Math.min(end, blockEnd) - blockStart);
+                start = blockEnd;
+                block++;
+            }
+        } finally {
+            reader.close();
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Records a block that has just been read, and passes it on to the
+     * listener.
+     *
+     * @param text the decoded text of the block.
+     * @param byteLength the encoded length of the block.
+     * @param listener the listener of the scan.
+     * @return the result of the listener.
+     */
+    boolean addBlock(String text, int byteLength, OnChunkListener listener) {
+        final int index;
+        final int charStart;
+        synchronized (this) {
+            index = mBlockCount;
+            if (index + 2 > mCharStarts.length) {
+                final int size = mCharStarts.length * 2;
+                mCharStarts = copyOf(mCharStarts, size);
+                mByteStarts = copyOf(mByteStarts, size);
+            }
+            charStart = mCharStarts[index];
+            mCharStarts[index + 1] = charStart + text.length();
+            mByteStarts[index + 1] = mByteStarts[index] + byteLength;
+            mBlockCount = index + 1;
+        }
+        mBlocks.put(index, text);
+        return listener.onChunk(text, charStart);
+    }
+
+    private synchronized int getBlockCount() {
+        return mBlockCount;
+    }
+
+    private synchronized int getCharStart(int block) {
+        return mCharStarts[block];
+    }
+
+    /**
+     * @return the index of the block containing the offset, or -1 if it has
+     *         not been read.
+     */
+    private synchronized int findBlock(int offset) {
+        if (offset > mCharStarts[mBlockCount] || mBlockCount == 0)
+            return -1;
+
+        int low = 0;
+        int high = mBlockCount - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mCharStarts[mid] <= offset)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Reads blocks that are not in memory from a stream that is kept open
+     * while they are read in order, and only opened again to go back.
+     */
+    private class BlockReader {
+        private InputStream mIn;
+        private long mPosition;
+
+        String getBlock(int block) throws IOException {
+            String text = mBlocks.get(block);
+            if (text != null)
+                return text;
+
+            final long byteStart;
+            final int byteLength;
+            synchronized (BlockTextSource.this) {
+                byteStart = mByteStarts[block];
+                byteLength = (int) (mByteStarts[block + 1] - byteStart);
+            }
+
+            if (mIn == null || mPosition > byteStart) {
+                close();
+                mIn = openBlockStream();
+                mPosition = 0;
+            }
+            skipFully(mIn, byteStart - mPosition);
+            mPosition = byteStart;
+
+            final byte[] bytes = new byte[byteLength];
+            mPosition += readFully(mIn, bytes, 0, byteLength);
+
+            text = new String(bytes, mCharset);
+            mBlocks.put(block, text);
+            return text;
+        }
+
+        void close() {
+            closeQuietly(mIn);
+            mIn = null;
+        }
+    }
+
+    static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped <= 0) {
+                // Some streams only skip what is buffered
+                if (in.read() < 0)
+                    throw new EOFException();
+                count--;
+            } else {
+                count -= skipped;
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes read, less than {@code length} only at the
+     *         end of the stream.
+     */
+    static int readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int count = in.read(buffer, offset + read, length - read);
+            if (count < 0)
+                break;
+            read += count;
+        }
+        return read;
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static int[] copyOf(int[] array, int size) {
+        final int[] copy = new int[size];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static long[] copyOf(long[] array, int size) {
+        final long[] copy = new long[size];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.os.Build;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+
+/**
+ * Breaks the lines of a chunk of text from the advances of its characters in
+ * an {@link AdvanceCache}, the way a {@link android.text.StaticLayout} breaks
+ * them, without measuring or laying out the text. Line heights are taken from
+ * small reference layouts made with the same paint and spacing.<br>
+ * <br>
+ * Only plain text in left-to-right scripts without tabs is broken this way,
+ * and only before API 23, where a StaticLayout breaks such text greedily at
+ * spaces and punctuation by the same rules, so that the lines are identical
+ * to its own. From API 23, lines are broken with ICU rules that aren't
+ * reproduced here, and since the pages cut from the lines are cached under
+ * the same key as those of a StaticLayout, the breaker is not used at all.
+ * Anything else is left to a StaticLayout. Each instance is used by a single
+ * thread.
+ *
+ * @author paulburke (ipaulpro)
+ */
+final class CachedLineBreaker {
+
+    /** First character of the scripts that are not simply left-to-right. */
+    private static final char FIRST_UNSUPPORTED = '\u0590';
+
+    private final TextPaint mPaint;
+    private final int mWidth;
+    private final AdvanceCache mCache;
+
+    /** Heights of the lines of a layout, by where they are in it. */
+    private final int mFirstHeight;
+    private final int mLineHeight;
+    private final int mEndHeight;
+    private final int mSingleHeight;
+    private final int mTopPadding;
+    private final int mBottomPadding;
+
+    /**
+     * The lines of a chunk of text broken from cached advances.
+     */
+    private static final class BrokenLines implements LineTable.Lines {
+        private final CharSequence mText;
+        private final int[] mStarts;
+        private final int[] mTops;
+        private final int mCount;
+        private final int mEnd;
+        private final int mTopPadding;
+        private final int mBottomPadding;
+
+        BrokenLines(CharSequence text, int[] starts, int[] tops, int count, int end,
+                int topPadding, int bottomPadding) {
+            mText = text;
+            mStarts = starts;
+            mTops = tops;
+            mCount = count;
+            mEnd = end;
+            mTopPadding = topPadding;
+            mBottomPadding = bottomPadding;
+        }
+
+        @Override
+        public CharSequence getText() {
+            return mText;
+        }
+
+        @Override
+        public int getLineCount() {
+            return mCount;
+        }
+
+        @Override
+        public int getLineStart(int line) {
+            // Like a layout, the line after the last starts at the end
+            return line < mCount ? mStarts[line] : mEnd;
+        }
+
+        @Override
+        public int getLineTop(int line) {
+            return mTops[line];
+        }
+
+        @Override
+        public int getTopPadding() {
+            return mTopPadding;
+        }
+
+        @Override
+        public int getBottomPadding() {
+            return mBottomPadding;
+        }
+
+        @Override
+        public Layout getLayout() {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if lines broken from cached advances are the same as those
+     *         of a StaticLayout on this platform.
+     */
+    static boolean isSupported() {
+        // From API 23 (Marshmallow), StaticLayout breaks lines with ICU
+        return Build.VERSION.SDK_INT < 23;
+    }
+
+    /**
+     * @param paint the paint to measure with, which is only used by the
+     *            calling thread.
+     * @param params the width and spacing to break lines with.
+     * @param cache the cache of advances.
+     */
+    CachedLineBreaker(TextPaint paint, PagingParams params, AdvanceCache cache) {
+        mPaint = paint;
+        mWidth = params.width;
+        mCache = cache;
+
+        // Plain text lines only differ in height by the font padding and
+        // spacing of the first line and of lines ending the layout
+        final Layout lines = Paginator.newLayout("x\nx\nx", 0, 5, paint, params);
+        final Layout single = Paginator.newLayout("x", 0, 1, paint, params);
+        mFirstHeight = lines.getLineTop(1) - lines.getLineTop(0);
+        mLineHeight = lines.getLineTop(2) - lines.getLineTop(1);
+        mEndHeight = lines.getLineTop(3) - lines.getLineTop(2);
+        mSingleHeight = single.getLineTop(1) - single.getLineTop(0);
+        mTopPadding = lines.getTopPadding();
+        mBottomPadding = lines.getBottomPadding();
+    }
+
+    /**
+     * Breaks the lines of a chunk of text.
+     *
+     * @param text the text.
+     * @param start the offset the chunk starts at, at a paragraph break.
+     * @param end the offset the chunk ends at.
+     * @return the lines, or null if the chunk has to be laid out by a
+     *         StaticLayout.
+     */
+    LineTable.Lines breakLines(CharSequence text, int start, int end) {
+        if (text instanceof Spanned)
+            return null;
+
+        int[] starts = new int[64];
+        int count = 0;
+        for (int para = start; para < end;) {
+            int paraEnd = TextUtils.indexOf(text, '\n', para, end);
+            paraEnd = paraEnd < 0 ? end : paraEnd + 1;
+            for (int i = para; i < paraEnd; i++) {
+                final char c = text.charAt(i);
+                if ((c < ' ' && c != '\n') || c >= FIRST_UNSUPPORTED)
+                    return null;
+            }
+
+            final float[] widths = mCache.getAdvances(text, para, paraEnd, mPaint);
+            int here = para;
+            int ok = here;
+            int fit = here;
+            float w = 0;
+            for (int j = para; j < paraEnd; j++) {
+                final char c = text.charAt(j);
+                if (c != '\n')
+                    w += widths[j - para];
+
+                if (w <= mWidth || c == ' ') {
+                    fit = j + 1;
+                    if (isBreak(text, c, j, here, paraEnd))
+                        ok = j + 1;
+                } else {
+                    // Break at the last opportunity, or else the last
+                    // character that fit, taking at least one character
+                    int lineEnd = ok != here ? ok : fit != here ? fit : here + 1;
+                    while (ok == here && fit == here && lineEnd < paraEnd
+                            && widths[lineEnd - para] == 0) {
+                        lineEnd++;
+                    }
+                    if (count == starts.length)
+                        starts = Arrays.copyOf(starts, count * 2);
+                    starts[count++] = here;
+                    here = lineEnd;
+                    j = here - 1;
+                    ok = here;
+                    fit = here;
+                    w = 0;
+                }
+            }
+            if (here < paraEnd) {
+                if (count == starts.length)
+                    starts = Arrays.copyOf(starts, count * 2);
+                starts[count++] = here;
+            }
+            para = paraEnd;
+        }
+
+        // A layout ends with an empty line after a paragraph break
+        if (start == end || text.charAt(end - 1) == '\n') {
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, count + 1);
+            starts[count++] = end;
+        }
+
+        final int[] tops = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            final boolean ending = i == count - 1 || starts[i + 1] == end;
+            final int height;
+            if (i == 0)
+                height = ending ? mSingleHeight : mFirstHeight;
+            else
+                height = ending ? mEndHeight : mLineHeight;
+            tops[i + 1] = tops[i] + height;
+        }
+        return new BrokenLines(text, starts, tops, count, end, mTopPadding, mBottomPadding);
+    }
+
+    /**
+     * @return true if a StaticLayout may break the line after the character.
+     */
+    private static boolean isBreak(CharSequence text, char c, int j, int here, int end) {
+        switch (c) {
+            case ' ':
+                return true;
+            case '.':
+            case ',':
+            case ':':
+            case ';':
+                // Not within a number
+                return (j - 1 < here || !Character.isDigit(text.charAt(j - 1)))
+                        && (j + 1 >= end || !Character.isDigit(text.charAt(j + 1)));
+            case '/':
+            case '-':
+                return j + 1 >= end || !Character.isDigit(text.charAt(j + 1));
+            default:
+                return false;
+        }
+    }
+}
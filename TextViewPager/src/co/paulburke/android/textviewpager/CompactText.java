@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.text.GetChars;
+import android.text.TextUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link CharSequence} stored at one byte per character when every character
+ * fits in Latin-1, or as UTF-8 otherwise, instead of the two bytes per
+ * character of a String. For mostly-ASCII text this roughly halves the memory
+ * taken by the text.<br>
+ * <br>
+ * {@link #subSequence(int, int)} returns a view of the same bytes rather than
+ * a copy, so slicing pages out of the text costs nothing until the page is
+ * shown. Only the characters are kept; the spans of styled text are dropped.
+ *
+ * @see TextViewPager#setText(CharSequence)
+ * @author paulburke (ipaulpro)
+ */
+public class CompactText implements CharSequence, GetChars {
+
+    private static final int COPY_LENGTH = 4096;
+
+    /** The Latin-1 bytes, or null if the text is UTF-8. */
+    private final byte[] mLatin1;
+    /** The index of the UTF-8 bytes, or null if the text is Latin-1. */
+    private final Utf8Index mUtf8;
+    private final int mStart;
+    private final int mLength;
+
+    private CompactText(byte[] latin1, Utf8Index utf8, int start, int length) {
+        mLatin1 = latin1;
+        mUtf8 = utf8;
+        mStart = start;
+        mLength = length;
+    }
+
+    /**
+     * @param text the text to store.
+     * @return the compact text, which is {@code text} itself if it is already
+     *         compact.
+     */
+    public static CompactText of(CharSequence text) {
+        if (text instanceof CompactText)
+            return (CompactText) text;
+
+        final int length = text.length();
+        final byte[] latin1 = new byte[length];
+        final char[] chars = new char[Math.min(length, COPY_LENGTH)];
+
+        for (int start = 0; start < length; start += COPY_LENGTH) {
+            final int count = Math.min(length - start, COPY_LENGTH);
+            TextUtils.getChars(text, start, start + count, chars, 0);
+            for (int i = 0; i < count; i++) {
+                final char c = chars[i];
+                if (c > 0xFF)
+                    return new CompactText(null, Utf8Index.build(encodeUtf8(text)), 0, length);
+                latin1[start + i] = (byte) c;
+            }
+        }
+        return new CompactText(latin1, null, 0, length);
+    }
+
+    /**
+     * @return true if the text is stored at one byte per character.
+     */
+    public boolean isLatin1() {
+        return mLatin1 != null;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength)
+            throw new IndexOutOfBoundsException("index = " + index + ", length = " + mLength);
+
+        if (mLatin1 != null)
+            return (char) (mLatin1[mStart + index] & 0xFF);
+        return mUtf8.charAt(mStart + index);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        if (start < 0 || end > mLength || start > end)
+            throw new IndexOutOfBoundsException("start = " + start + ", end = " + end
+                    + ", length = " + mLength);
+
+        if (mLatin1 != null) {
+            for (int i = mStart + start, last = mStart + end; i < last; i++) {
+                dest[destoff++] = (char) (mLatin1[i] & 0xFF);
+            }
+        } else {
+            mUtf8.getChars(mStart + start, mStart + end, dest, destoff);
+        }
+    }
+
+    /**
+     * @return a view of the characters from {@code start} to {@code end},
+     *         sharing the bytes of this text.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > mLength || start > end)
+            throw new IndexOutOfBoundsException("start = " + start + ", end = " + end
+                    + ", length = " + mLength);
+
+        if (start == 0 && end == mLength)
+            return this;
+        return new CompactText(mLatin1, mUtf8, mStart + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        final char[] chars = new char[mLength];
+        getChars(0, mLength, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Encodes the text as UTF-8. Unpaired surrogates are replaced with U+FFFD,
+     * so the decoded text has the same length.
+     */
+    private static ByteBuffer encodeUtf8(CharSequence text) {
+        final int length = text.length();
+        byte[] bytes = new byte[length + length / 2];
+        int b = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (bytes.length - b < 4) {
+                final byte[] grown = new byte[bytes.length * 3 / 2 + 4];
+                System.arraycopy(bytes, 0, grown, 0, b);
+                bytes = grown;
+            }
+
+            int c = text.charAt(i);
+            if (c < 0x80) {
+                bytes[b++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[b++] = (byte) (0xC0 | (c >> 6));
+                bytes[b++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, text.charAt(++i));
+                bytes[b++] = (byte) (0xF0 | (c >> 18));
+                bytes[b++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+                bytes[b++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[b++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+                    c = 0xFFFD;
+                bytes[b++] = (byte) (0xE0 | (c >> 12));
+                bytes[b++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[b++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        // The bytes are kept for as long as the text, so drop the slack
+        final byte[] exact = new byte[b];
+        System.arraycopy(bytes, 0, exact, 0, b);
+        return ByteBuffer.wrap(exact);
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.support.v4.util.LruCache;
+import android.text.GetChars;
+import android.text.TextUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link CharSequence} held in memory as independently deflated blocks, so
+ * that documents which stay open take a fraction of the memory of their text.
+ * Only the blocks touched by a page are inflated, and the few most recently
+ * used are kept.<br>
+ * <br>
+ * Only the characters are kept; the spans of styled text are dropped.
+ * Compressing reads all of the text, so it should not be done on the UI
+ * thread for long text.
+ *
+ * @see TextViewPager#setText(CharSequence)
+ * @author paulburke (ipaulpro)
+ */
+public class CompressedText implements CharSequence, GetChars {
+
+    /** Number of characters in each block. */
+    private static final int BLOCK_LENGTH = 32 * 1024;
+    /** Number of inflated blocks kept in memory. */
+    private static final int RESIDENT_BLOCKS = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[][] mBlocks;
+    /** Character offset of each block, with the length of the text after them. */
+    private final int[] mStarts;
+    /** Encoded length of each block, to size the inflate buffer. */
+    private final int[] mByteLengths;
+    private final LruCache<Integer, String> mInflated = new LruCache<Integer, String>(
+            RESIDENT_BLOCKS);
+
+    /** The block read last, replaced whole so other threads see all of it. */
+    private volatile Block mLast;
+
+    private static final class Block {
+        final int index;
+        final int start;
+        final String text;
+
+        Block(int index, int start, String text) {
+            this.index = index;
+            this.start = start;
+            this.text = text;
+        }
+    }
+
+    private CompressedText(byte[][] blocks, int[] starts, int[] byteLengths) {
+        mBlocks = blocks;
+        mStarts = starts;
+        mByteLengths = byteLengths;
+    }
+
+    /**
+     * @param text the text to compress.
+     * @return the compressed text.
+     */
+    public static CompressedText compress(CharSequence text) {
+        final Builder builder = new Builder();
+        final int length = text.length();
+        final char[] chars = new char[Math.min(length, BLOCK_LENGTH)];
+
+        int start = 0;
+        while (start < length) {
+            int end = Math.min(length, start + BLOCK_LENGTH);
+            // Never split a surrogate pair between blocks
+            if (end < length && Character.isHighSurrogate(text.charAt(end - 1)))
+                end--;
+            TextUtils.getChars(text, start, end, chars, 0);
+            builder.add(chars, end - start);
+            start = end;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Compresses text as it is read, without holding all of it in memory.
+     *
+     * @param reader the reader of the text, which is read to the end but not
+     *            closed.
+     * @return the compressed text.
+     * @throws IOException if the reader fails.
+     */
+    public static CompressedText compress(Reader reader) throws IOException {
+        final Builder builder = new Builder();
+        final char[] chars = new char[BLOCK_LENGTH];
+
+        int length = 0;
+        while (true) {
+            final int count = reader.read(chars, length, BLOCK_LENGTH - length);
+            if (count > 0)
+                length += count;
+            if (count < 0 || length == BLOCK_LENGTH) {
+                if (length == 0)
+                    break;
+
+                final boolean split = count >= 0 && Character.isHighSurrogate(chars[length - 1]);
+                builder.add(chars, split ? length - 1 : length);
+                if (count < 0)
+                    break;
+
+                // Carry the high surrogate into the next block
+                if (split)
+                    chars[0] = chars[length - 1];
+                length = split ? 1 : 0;
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int length() {
+        return mStarts[mBlocks.length];
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length())
+            throw new IndexOutOfBoundsException("index = " + index + ", length = " + length());
+
+        final Block block = getBlock(findBlock(index));
+        return block.text.charAt(index - block.start);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        if (start < 0 || end > length() || start > end)
+            throw new IndexOutOfBoundsException("start = " + start + ", end = " + end
+                    + ", length = " + length());
+
+        int index = start < end ? findBlock(start) : mBlocks.length;
+        while (start < end) {
+            final Block block = getBlock(index++);
+            final int blockEnd = Math.min(end, block.start + block.text.length());
+            block.text.getChars(start - block.start, blockEnd - block.start, dest, destoff);
+            destoff += blockEnd - start;
+            start = blockEnd;
+        }
+    }
+
+    /**
+     * Inflates the blocks spanning {@code start} to {@code end}.
+     *
+     * @return a new String of the characters.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        final char[] chars = new char[end - start];
+        getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Inflates the whole text onto the heap.
+     */
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    /**
+     * @return the number of bytes the compressed blocks take up.
+     */
+    public int getCompressedSize() {
+        int size = 0;
+        for (byte[] block : mBlocks) {
+            size += block.length;
+        }
+        return size;
+    }
+
+    private int findBlock(int offset) {
+        final Block last = mLast;
+        if (last != null && offset >= last.start && offset < mStarts[last.index + 1])
+            return last.index;
+
+        int low = 0;
+        int high = mBlocks.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mStarts[mid] <= offset)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    private Block getBlock(int index) {
+        final Block last = mLast;
+        if (last != null && last.index == index)
+            return last;
+
+        String text = mInflated.get(index);
+        if (text == null) {
+            text = inflate(index);
+            mInflated.put(index, text);
+        }
+
+        final Block block = new Block(index, mStarts[index], text);
+        mLast = block;
+        return block;
+    }
+
+    private String inflate(int index) {
+        final byte[] bytes = new byte[mByteLengths[index]];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(mBlocks[index]);
+            int length = 0;
+            while (length < bytes.length && !inflater.finished()) {
+                length += inflater.inflate(bytes, length, bytes.length - length);
+            }
+        } catch (DataFormatException e) {
+            // The blocks were deflated by this class, so this can't happen
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Deflates blocks of text one at a time.
+     */
+    private static class Builder {
+
+        private final List<byte[]> mBlocks = new ArrayList<byte[]>();
+        private final List<Integer> mByteLengths = new ArrayList<Integer>();
+        private final List<Integer> mStarts = new ArrayList<Integer>();
+        private final Deflater mDeflater = new Deflater();
+        private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+        private final byte[] mBuffer = new byte[8 * 1024];
+        private int mLength;
+
+        void add(char[] chars, int count) {
+            final byte[] bytes = new String(chars, 0, count).getBytes(UTF_8);
+
+            mDeflater.reset();
+            mDeflater.setInput(bytes);
+            mDeflater.finish();
+            mOutput.reset();
+            while (!mDeflater.finished()) {
+                mOutput.write(mBuffer, 0, mDeflater.deflate(mBuffer));
+            }
+
+            mBlocks.add(mOutput.toByteArray());
+            mByteLengths.add(bytes.length);
+            mStarts.add(mLength);
+            mLength += count;
+        }
+
+        CompressedText build() {
+            mDeflater.end();
+
+            final int count = mBlocks.size();
+            final int[] starts = new int[count + 1];
+            final int[] byteLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = mStarts.get(i);
+                byteLengths[i] = mByteLengths.get(i);
+            }
+            starts[count] = mLength;
+
+            return new CompressedText(mBlocks.toArray(new byte[count][]), starts, byteLengths);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.graphics.Canvas;
+import android.text.Layout;
+
+import java.util.Arrays;
+
+/**
+ * The layouts of the chunks of a document, kept by the {@link Paginator} so
+ * that pages can be drawn straight from them by a {@link PageView}, without
+ * laying out the text of each page again. Chunks are appended on the
+ * paginator's thread while pages are sliced on the main thread.
+ *
+ * @author paulburke (ipaulpro)
+ */
+final class DocumentLayout {
+
+    private final LineTable mLines;
+    private Layout[] mLayouts = new Layout[16];
+    private int[] mFirstLines = new int[16];
+    private int[] mOrigins = new int[16];
+    /** Bottom of the lines used of each layout, below which it is clipped. */
+    private int[] mBottoms = new int[16];
+    private int mCount;
+    private int mEnd;
+
+    /**
+     * A range of lines of the document, ready to be drawn.
+     */
+    static final class Slice {
+        private final Layout[] mLayouts;
+        private final int[] mOffsets;
+        private final int[] mBottoms;
+        /** Height of the lines of the slice. */
+        final int height;
+
+        private Slice(Layout[] layouts, int[] offsets, int[] bottoms, int height) {
+            mLayouts = layouts;
+            mOffsets = offsets;
+            mBottoms = bottoms;
+            this.height = height;
+        }
+
+        /**
+         * Draws the lines of the slice with their top at 0. Lines of the
+         * layouts outside the slice are clipped.
+         *
+         * @param canvas the canvas to draw on.
+         * @param width the width of the text.
+         */
+        void draw(Canvas canvas, int width) {
+            canvas.save();
+            canvas.clipRect(0, 0, width, height);
+            for (int i = 0; i < mLayouts.length; i++) {
+                canvas.save();
+                canvas.translate(0, mOffsets[i]);
+                // A chunk split in a long paragraph has a last line that is
+                // laid out again at the start of the next
+                canvas.clipRect(0, 0, width, mBottoms[i]);
+                mLayouts[i].draw(canvas);
+                canvas.restore();
+            }
+            canvas.restore();
+        }
+    }
+
+    /**
+     * @param lines the table the lines of each chunk are appended to.
+     */
+    DocumentLayout(LineTable lines) {
+        mLines = lines;
+    }
+
+    /**
+     * Appends the layout of a chunk to the line table, and keeps it.
+     *
+     * @see LineTable#append(Layout, int, int, boolean, boolean)
+     */
+    synchronized void append(Layout layout, int lineCount, int offset, boolean first,
+            boolean last) {
+        if (mCount == mLayouts.length) {
+            mLayouts = Arrays.copyOf(mLayouts, mCount * 2);
+            mFirstLines = Arrays.copyOf(mFirstLines, mCount * 2);
+            mOrigins = Arrays.copyOf(mOrigins, mCount * 2);
+            mBottoms = Arrays.copyOf(mBottoms, mCount * 2);
+        }
+
+        mFirstLines[mCount] = mLines.getLineCount();
+        mOrigins[mCount] = mLines.append(layout, lineCount, offset, first, last);
+        mBottoms[mCount] = layout.getLineTop(lineCount);
+        mLayouts[mCount] = layout;
+        mCount++;
+        mEnd = offset + layout.getLineStart(lineCount);
+    }
+
+    /**
+     * Slices out the lines of a page.
+     *
+     * @param start the character offset of the start of the page.
+     * @param end the character offset of the end of the page.
+     * @return the slice, or null if the page doesn't start and end at lines
+     *         that have been laid out.
+     */
+    synchronized Slice slice(int start, int end) {
+        final int firstLine = mLines.findLine(start);
+        final int lastLine = end == mEnd ? mLines.getLineCount() : mLines.findLine(end);
+        if (firstLine < 0 || lastLine <= firstLine)
+            return null;
+
+        final int firstChunk = findChunk(firstLine);
+        final int lastChunk = findChunk(lastLine - 1);
+        final int top = mLines.getLineTop(firstLine);
+
+        final int count = lastChunk - firstChunk + 1;
+        final Layout[] layouts = new Layout[count];
+        final int[] offsets = new int[count];
+        final int[] bottoms = new int[count];
+        for (int i = 0; i < count; i++) {
+            layouts[i] = mLayouts[firstChunk + i];
+            offsets[i] = mOrigins[firstChunk + i] - top;
+            bottoms[i] = mBottoms[firstChunk + i];
+        }
+        return new Slice(layouts, offsets, bottoms, mLines.getLineTop(lastLine) - top);
+    }
+
+    private int findChunk(int line) {
+        int low = 0;
+        int high = mCount - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (mFirstLines[mid] <= line)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.text.GetChars;
+import android.text.TextUtils;
+
+/**
+ * An immutable {@link CharSequence} that text can be appended to without
+ * copying it: {@link #append(CharSequence)} returns a new text that shares the
+ * characters of this one, written into the spare room of a common buffer.
+ * Each text only ever reads the characters before its end, so texts handed to
+ * a background thread stay valid while more is appended on the main
+ * thread.<br>
+ * <br>
+ * {@link #subSequence(int, int)} shares the buffer too, so dropping the start
+ * of a long text copies nothing. The dropped characters are discarded the next
+ * time the buffer has to grow. Only the characters are kept; the spans of
+ * styled text are dropped.
+ *
+ * @see TextViewPager#appendText(CharSequence)
+ * @author paulburke (ipaulpro)
+ */
+public class GrowingText implements CharSequence, GetChars {
+
+    private static final int MIN_CAPACITY = 1024;
+
+    /** Characters shared by the texts appended to one another. */
+    private static final class Buffer {
+        final char[] chars;
+        /** The end of the longest text in the buffer. */
+        int length;
+
+        Buffer(int capacity) {
+            chars = new char[capacity];
+        }
+    }
+
+    private final Buffer mBuffer;
+    private final int mStart;
+    private final int mEnd;
+
+    private GrowingText(Buffer buffer, int start, int end) {
+        mBuffer = buffer;
+        mStart = start;
+        mEnd = end;
+    }
+
+    /**
+     * @param text the initial text, which is copied.
+     * @return the text, which is {@code text} itself if it is already a
+     *         growing text.
+     */
+    public static GrowingText of(CharSequence text) {
+        if (text instanceof GrowingText)
+            return (GrowingText) text;
+        return new GrowingText(new Buffer(MIN_CAPACITY), 0, 0).append(text);
+    }
+
+    /**
+     * Appends text to this one. This text is left unchanged.
+     *
+     * @param text the text to append, which is copied.
+     * @return the combined text.
+     */
+    public GrowingText append(CharSequence text) {
+        final int count = text.length();
+        if (count == 0)
+            return this;
+
+        // Only the longest text may write to the spare room, since the rest
+        // of the buffer already belongs to it
+        final boolean shared;
+        synchronized (mBuffer) {
+            shared = mBuffer.length == mEnd && mBuffer.chars.length - mEnd >= count;
+            if (shared)
+                mBuffer.length = mEnd + count;
+        }
+        if (shared) {
+            TextUtils.getChars(text, 0, count, mBuffer.chars, mEnd);
+            return new GrowingText(mBuffer, mStart, mEnd + count);
+        }
+
+        // Grow the buffer, dropping the characters before this text
+        final int length = mEnd - mStart;
+        final Buffer buffer = new Buffer(Math.max(MIN_CAPACITY, (length + count) * 2));
+        System.arraycopy(mBuffer.chars, mStart, buffer.chars, 0, length);
+        TextUtils.getChars(text, 0, count, buffer.chars, length);
+        buffer.length = length + count;
+        return new GrowingText(buffer, 0, length + count);
+    }
+
+    @Override
+    public int length() {
+        return mEnd - mStart;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mEnd - mStart)
+            throw new IndexOutOfBoundsException("index = " + index + ", length = "
+                    + (mEnd - mStart));
+        return mBuffer.chars[mStart + index];
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        checkBounds(start, end);
+        System.arraycopy(mBuffer.chars, mStart + start, dest, destoff, end - start);
+    }
+
+    /**
+     * @return a text of the characters from {@code start} to {@code end},
+     *         sharing the buffer of this text.
+     */
+    @Override
+    public GrowingText subSequence(int start, int end) {
+        checkBounds(start, end);
+        if (start == 0 && end == mEnd - mStart)
+            return this;
+        return new GrowingText(mBuffer, mStart + start, mStart + end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBuffer.chars, mStart, mEnd - mStart);
+    }
+
+    private void checkBounds(int start, int end) {
+        if (start < 0 || end > mEnd - mStart || start > end)
+            throw new IndexOutOfBoundsException("start = " + start + ", end = " + end
+                    + ", length = " + (mEnd - mStart));
+    }
+}
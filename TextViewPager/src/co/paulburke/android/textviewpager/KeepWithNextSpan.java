@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+/**
+ * Marks text, such as a heading, that should be kept on the same page as the
+ * line after it. A {@link PageBreaker} avoids breaking a page after any line
+ * the span covers, unless every other break is worse. It has no effect on
+ * how the text is drawn.
+ *
+ * @see PageBreaker.Builder#setKeepWithNextPenalty(int)
+ * @author paulburke (ipaulpro)
+ */
+public class KeepWithNextSpan {
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.text.Layout;
+import android.text.Spanned;
+
+import java.util.Arrays;
+
+/**
+ * Growable table of the start offset and top of every line of a document,
+ * assembled from the layouts of consecutive chunks of text, or from their
+ * lines as broken by a {@link CachedLineBreaker}. Each line is also flagged
+ * if it starts a paragraph or is covered by a {@link KeepWithNextSpan}, for a
+ * {@link PageBreaker} to score page breaks with.
+ *
+ * @author paulburke (ipaulpro)
+ */
+class LineTable {
+
+    private int[] mStarts = new int[64];
+    private int[] mTops = new int[65];
+    private byte[] mFlags = new byte[64];
+    private int mCount;
+
+    private static final byte FLAG_PARAGRAPH_START = 1;
+    private static final byte FLAG_KEEP_WITH_NEXT = 2;
+
+    /**
+     * The lines of a chunk of text, with the positions of a {@link Layout}.
+     */
+    interface Lines {
+        /**
+         * @return the text the line starts are offsets in.
+         */
+        CharSequence getText();
+
+        int getLineCount();
+
+        int getLineStart(int line);
+
+        int getLineTop(int line);
+
+        int getTopPadding();
+
+        int getBottomPadding();
+
+        /**
+         * @return the layout of the lines, or null if they were broken
+         *         without one and can't be drawn.
+         */
+        Layout getLayout();
+    }
+
+    /**
+     * @param layout a layout.
+     * @return the lines of the layout.
+     */
+    static Lines of(final Layout layout) {
+        return new Lines() {
+            @Override
+            public CharSequence getText() {
+                return layout.getText();
+            }
+
+            @Override
+            public int getLineCount() {
+                return layout.getLineCount();
+            }
+
+            @Override
+            public int getLineStart(int line) {
+                return layout.getLineStart(line);
+            }
+
+            @Override
+            public int getLineTop(int line) {
+                return layout.getLineTop(line);
+            }
+
+            @Override
+            public int getTopPadding() {
+                return layout.getTopPadding();
+            }
+
+            @Override
+            public int getBottomPadding() {
+                return layout.getBottomPadding();
+            }
+
+            @Override
+            public Layout getLayout() {
+                return layout;
+            }
+        };
+    }
+
+    /**
+     * Appends the first lines of the layout of a chunk of the document.
+     *
+     * @see #append(Lines, int, int, boolean, boolean)
+     */
+    int append(Layout layout, int lineCount, int offset, boolean first, boolean last) {
+        return append(of(layout), lineCount, offset, first, last);
+    }
+
+    /**
+     * Appends the first lines of a chunk of the document.
+     *
+     * @param layout lines of the chunk.
+     * @param lineCount number of lines of the layout to append.
+     * @param offset added to the character offsets of the layout to make them
+     *            relative to the start of the document.
+     * @param first whether the chunk is the start of the document, in which
+     *            case its top font padding is kept.
+     * @param last whether the chunk is the end of the document, in which case
+     *            its bottom font padding is kept.
+     * @return the vertical position of the top of the layout in the document,
+     *         such that its lines after the first are at their tops.
+     */
+    int append(Lines layout, int lineCount, int offset, boolean first, boolean last) {
+        ensureCapacity(mCount + lineCount);
+
+        // Font padding only applies to the top and bottom of the document
+        final CharSequence text = layout.getText();
+        final int topPadding = first ? 0 : layout.getTopPadding();
+        final int firstLine = mCount;
+        int y = getBottom() - layout.getLineTop(0);
+        for (int i = 0; i < lineCount; i++) {
+            final int start = layout.getLineStart(i);
+            mStarts[mCount] = offset + start;
+            mTops[mCount] = y + layout.getLineTop(i) + (i == 0 ? 0 : topPadding);
+            mFlags[mCount] = start == 0 || text.charAt(start - 1) == '\n'
+                    ? FLAG_PARAGRAPH_START : 0;
+            mCount++;
+        }
+        if (text instanceof Spanned && lineCount > 0)
+            flagKeepWithNext((Spanned) text, offset, firstLine,
+                    layout.getLineStart(lineCount));
+        int bottom = y + layout.getLineTop(lineCount) + topPadding;
+        if (!last && lineCount == layout.getLineCount())
+            bottom -= layout.getBottomPadding();
+        mTops[mCount] = bottom;
+        return y + topPadding;
+    }
+
+    /**
+     * Flags the lines from a line to the last of the table that are covered
+     * by a {@link KeepWithNextSpan}. Only the spans within the lines are
+     * looked up, so appending a document chunk by chunk stays linear.
+     *
+     * @param end the offset in the text of the end of the last line.
+     */
+    private void flagKeepWithNext(Spanned text, int offset, int firstLine, int end) {
+        final int start = mStarts[firstLine] - offset;
+        final KeepWithNextSpan[] spans = text.getSpans(start, end, KeepWithNextSpan.class);
+        for (KeepWithNextSpan span : spans) {
+            final int spanStart = text.getSpanStart(span) + offset;
+            final int spanEnd = text.getSpanEnd(span) + offset;
+            int line = Arrays.binarySearch(mStarts, firstLine, mCount, spanStart);
+            line = line >= 0 ? line : Math.max(firstLine, -line - 2);
+            for (; line < mCount && mStarts[line] < spanEnd; line++) {
+                mFlags[line] |= FLAG_KEEP_WITH_NEXT;
+            }
+        }
+    }
+
+    /**
+     * @return the number of lines in the table.
+     */
+    int getLineCount() {
+        return mCount;
+    }
+
+    /**
+     * @param line the line index.
+     * @return the character offset the line starts at.
+     */
+    int getLineStart(int line) {
+        return mStarts[line];
+    }
+
+    /**
+     * @param line the line index, or the line count for the bottom of the
+     *            table.
+     * @return the vertical position of the top of the line.
+     */
+    int getLineTop(int line) {
+        return mTops[line];
+    }
+
+    /**
+     * @param line the line index.
+     * @return the vertical position of the bottom of the line.
+     */
+    int getLineBottom(int line) {
+        return mTops[line + 1];
+    }
+
+    /**
+     * @param line the line index.
+     * @return true if the line is the first of a paragraph.
+     */
+    boolean isParagraphStart(int line) {
+        return (mFlags[line] & FLAG_PARAGRAPH_START) != 0;
+    }
+
+    /**
+     * @param line the line index.
+     * @return true if the line is covered by a {@link KeepWithNextSpan}, so
+     *         should not end a page.
+     */
+    boolean isKeptWithNext(int line) {
+        return (mFlags[line] & FLAG_KEEP_WITH_NEXT) != 0;
+    }
+
+    /**
+     * @param offset a character offset.
+     * @return the index of the line starting at the offset, or -1 if no line
+     *         starts there.
+     */
+    int findLine(int offset) {
+        final int line = Arrays.binarySearch(mStarts, 0, mCount, offset);
+        return line >= 0 ? line : -1;
+    }
+
+    /**
+     * @param offset a character offset within the table.
+     * @return the index of the last line starting at or before the offset.
+     */
+    int getLineForOffset(int offset) {
+        final int line = Arrays.binarySearch(mStarts, 0, mCount, offset);
+        return line >= 0 ? line : Math.max(0, -line - 2);
+    }
+
+    /**
+     * Finds where a page starting at a line ends, by searching the line tops
+     * for the last line that fits in the height below the top of the first.
+     *
+     * @param start the line the page starts at.
+     * @param height the height of the page.
+     * @return the line the next page starts at, after at least one line, or
+     *         the line count if the rest of the lines fit.
+     */
+    int findPageEnd(int start, int height) {
+        final int limit = mTops[start] + height;
+        int end = Arrays.binarySearch(mTops, start + 1, mCount + 1, limit);
+        if (end < 0) {
+            end = -end - 2;
+        } else {
+            // Empty lines have the same top as the line after them
+            while (end < mCount && mTops[end + 1] == limit) {
+                end++;
+            }
+        }
+        return Math.min(mCount, Math.max(start + 1, end));
+    }
+
+    /**
+     * Finds where a page ending before a line starts, for laying out pages
+     * backwards from a line.
+     *
+     * @param end the line after the last of the page.
+     * @param height the height of the page.
+     * @return the first line of the page, before at least one line.
+     */
+    int findPageStart(int end, int height) {
+        final int limit = mTops[end] - height;
+        int start = Arrays.binarySearch(mTops, 0, end, limit);
+        if (start < 0) {
+            start = -start - 1;
+        } else {
+            while (start > 0 && mTops[start - 1] == limit) {
+                start--;
+            }
+        }
+        return Math.max(0, Math.min(end - 1, start));
+    }
+
+    /**
+     * Breaks the lines into pages, each holding as many lines as fit in the
+     * height, whatever their heights.
+     *
+     * @param height the height of each page.
+     * @return the lines the pages start at.
+     */
+    int[] getPageLines(int height) {
+        int[] lines = new int[Math.max(1, mCount / 16)];
+        int count = 0;
+        int line = 0;
+        do {
+            if (count == lines.length)
+                lines = Arrays.copyOf(lines, count * 2);
+            lines[count++] = line;
+            line = mCount > 0 ? findPageEnd(line, height) : 0;
+        } while (line < mCount);
+        return Arrays.copyOf(lines, count);
+    }
+
+    /**
+     * @param lines line indices, such as those pages start at.
+     * @return the character offsets the lines start at.
+     */
+    int[] getLineStarts(int[] lines) {
+        final int[] offsets = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            offsets[i] = mCount > 0 ? mStarts[lines[i]] : 0;
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the vertical position of the bottom of the last line.
+     */
+    int getBottom() {
+        return mTops[mCount];
+    }
+
+    private void ensureCapacity(int count) {
+        if (count > mStarts.length) {
+            final int capacity = Math.max(count, mStarts.length * 2);
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mTops = Arrays.copyOf(mTops, capacity + 1);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.text.GetChars;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link CharSequence} backed by a memory-mapped UTF-8 file, so that text
+ * far larger than the heap can be paged. The file is decoded on demand: only
+ * a sparse index of character offsets is kept on the heap, and
+ * {@link #subSequence(int, int)} decodes just the characters of the page being
+ * shown.<br>
+ * <br>
+ * Opening the file reads it once to build the index, so
+ * {@link #open(File)} should not be called on the UI thread for large files.
+ * Files must be smaller than 2GB, and must not change while they are mapped.
+ *
+ * @see TextViewPager#setText(CharSequence)
+ * @author paulburke (ipaulpro)
+ */
+public class MappedText implements CharSequence, GetChars {
+
+    private final Utf8Index mIndex;
+
+    private MappedText(Utf8Index index) {
+        mIndex = index;
+    }
+
+    /**
+     * Maps and indexes a UTF-8 file. A byte order mark at the start of the
+     * file is skipped.
+     *
+     * @param file the file to map.
+     * @return the text of the file.
+     * @throws IOException if the file can't be read or is too large.
+     */
+    public static MappedText open(File file) throws IOException {
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            final FileChannel channel = input.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to map");
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size >= 3 && (buffer.get(0) & 0xFF) == 0xEF && (buffer.get(1) & 0xFF) == 0xBB
+                    && (buffer.get(2) & 0xFF) == 0xBF) {
+                buffer.position(3);
+                buffer = buffer.slice();
+            }
+
+            // The mapping stays valid after the channel is closed
+            return new MappedText(Utf8Index.build(buffer));
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public int length() {
+        return mIndex.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return mIndex.charAt(index);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        mIndex.getChars(start, end, dest, destoff);
+    }
+
+    /**
+     * Decodes the characters from {@code start} to {@code end}.
+     *
+     * @return a new String of the characters.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        final char[] chars = new char[end - start];
+        mIndex.getChars(start, end, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Decodes the whole file onto the heap, which defeats the purpose of this
+     * class for large files.
+     */
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+}
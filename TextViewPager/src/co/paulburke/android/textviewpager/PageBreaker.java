@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import java.util.Arrays;
+
+/**
+ * Chooses where pages break by scoring every way of breaking the lines of a
+ * text, rather than filling each page with as many lines as fit. A page may
+ * be left up to a few lines short to avoid breaking it where it would leave
+ * a widow, the last line of a paragraph alone at the top of a page, or an
+ * orphan, the first line of a paragraph alone at the bottom, or break after
+ * a line covered by a {@link KeepWithNextSpan}.<br>
+ * <br>
+ * Each break costs the square of the percentage of the height left empty on
+ * the page it ends, plus the penalties that apply to it, and the breaks with
+ * the lowest total cost are found by a dynamic program over the lines. Since
+ * a page can only end within {@link Builder#setLookBack(int)} lines of the
+ * last line that fits, the program is linear in the number of lines.<br>
+ * <br>
+ * Instances are immutable, so one can be shared by several threads.
+ *
+ * @see Paginator#setPageBreaker(PageBreaker)
+ * @see PagingLayoutListener#setPageBreaker(PageBreaker)
+ * @author paulburke (ipaulpro)
+ */
+public final class PageBreaker {
+
+    public static final int DEFAULT_WIDOW_PENALTY = 150;
+    public static final int DEFAULT_ORPHAN_PENALTY = 150;
+    public static final int DEFAULT_KEEP_WITH_NEXT_PENALTY = 1000;
+    public static final int DEFAULT_LOOK_BACK = 3;
+
+    /**
+     * Number of pages before the last lines of a table that is still growing
+     * that are left to be broken once more lines are appended, since the
+     * lines after them can still change where they break.
+     */
+    static final int OPEN_PAGES = 3;
+
+    private static final int[] NO_BREAKS = new int[0];
+
+    private final int mWidowPenalty;
+    private final int mOrphanPenalty;
+    private final int mKeepWithNextPenalty;
+    private final int mLookBack;
+
+    private PageBreaker(Builder builder) {
+        mWidowPenalty = builder.mWidowPenalty;
+        mOrphanPenalty = builder.mOrphanPenalty;
+        mKeepWithNextPenalty = builder.mKeepWithNextPenalty;
+        mLookBack = builder.mLookBack;
+    }
+
+    /**
+     * @return the cost of a page starting with the last line of a paragraph.
+     */
+    public int getWidowPenalty() {
+        return mWidowPenalty;
+    }
+
+    /**
+     * @return the cost of a page ending with the first line of a paragraph.
+     */
+    public int getOrphanPenalty() {
+        return mOrphanPenalty;
+    }
+
+    /**
+     * @return the cost of a page ending with a line covered by a
+     *         {@link KeepWithNextSpan}.
+     */
+    public int getKeepWithNextPenalty() {
+        return mKeepWithNextPenalty;
+    }
+
+    /**
+     * @return the number of lines a page may be left short by.
+     */
+    public int getLookBack() {
+        return mLookBack;
+    }
+
+    /**
+     * Breaks all the lines of a table into pages.
+     *
+     * @param lines the lines of the whole text.
+     * @param height the height of each page.
+     * @return the lines the pages start at.
+     */
+    int[] getPageLines(LineTable lines, int height) {
+        final int[] breaks = findBreaks(lines, 0, height, true);
+        final int[] pageLines = new int[breaks.length + 1];
+        System.arraycopy(breaks, 0, pageLines, 1, breaks.length);
+        return pageLines;
+    }
+
+    /**
+     * Finds the best breaks of the lines from a line on. If the table is
+     * still growing, the breaks of the last {@link #OPEN_PAGES} pages are
+     * left out, as are those of a last page that may not be full yet.
+     *
+     * @param lines the lines.
+     * @param from the line that starts a page.
+     * @param height the height of each page.
+     * @param complete whether the table holds the lines of the whole text.
+     * @return the lines after {@code from} that start pages, in order.
+     */
+    int[] findBreaks(LineTable lines, int from, int height, boolean complete) {
+        final int count = lines.getLineCount();
+        if (count - from <= 0)
+            return NO_BREAKS;
+
+        // The lowest cost of breaking the lines up to each line, and the
+        // line the page ending before it starts at, relative to from
+        final long[] costs = new long[count - from + 1];
+        final int[] starts = new int[count - from + 1];
+        Arrays.fill(costs, Long.MAX_VALUE);
+        costs[0] = 0;
+
+        int end = from;
+        int best = -1;
+        long bestCost = Long.MAX_VALUE;
+        for (int i = from; i < count; i++) {
+            // The lines that fit below a line never decrease, so finding them
+            // is linear over all the lines
+            final int top = lines.getLineTop(i);
+            end = Math.max(end, i + 1);
+            while (end < count && lines.getLineTop(end + 1) - top <= height) {
+                end++;
+            }
+
+            final long cost = costs[i - from];
+            if (cost == Long.MAX_VALUE)
+                continue;
+
+            if (end >= count && cost < bestCost) {
+                // The rest of the lines fit on a page starting here
+                best = i;
+                bestCost = cost;
+            }
+
+            final int first = Math.max(i + 1, end - mLookBack);
+            for (int j = Math.min(end, count - 1); j >= first; j--) {
+                final int used = lines.getLineTop(j) - top;
+                final long empty = (height - used) * 100L / height;
+                final long next = cost + empty * empty + getPenalty(lines, j, complete);
+                if (next < costs[j - from]) {
+                    costs[j - from] = next;
+                    starts[j - from] = i;
+                }
+            }
+        }
+
+        int breakCount = 0;
+        for (int line = best; line > from; line = starts[line - from]) {
+            breakCount++;
+        }
+        if (!complete)
+            breakCount = Math.max(0, breakCount - OPEN_PAGES);
+
+        final int[] breaks = new int[breakCount];
+        int skip = !complete ? OPEN_PAGES : 0;
+        int i = breakCount;
+        for (int line = best; line > from && i > 0; line = starts[line - from]) {
+            if (skip > 0)
+                skip--;
+            else
+                breaks[--i] = line;
+        }
+        return breaks;
+    }
+
+    /**
+     * @return the penalties of breaking a page before a line.
+     */
+    private long getPenalty(LineTable lines, int line, boolean complete) {
+        final int count = lines.getLineCount();
+        final boolean paragraphStart = lines.isParagraphStart(line);
+        long penalty = 0;
+        if (lines.isKeptWithNext(line - 1))
+            penalty += mKeepWithNextPenalty;
+        if (!paragraphStart && lines.isParagraphStart(line - 1))
+            penalty += mOrphanPenalty;
+        // The line after the last of a growing table is not known yet
+        if (!paragraphStart && (line + 1 < count ? lines.isParagraphStart(line + 1) : complete))
+            penalty += mWidowPenalty;
+        return penalty;
+    }
+
+    /**
+     * @return a string that differs for breakers that break pages
+     *         differently, for the {@link PaginationKey} of their results.
+     */
+    String getSignature() {
+        return mWidowPenalty + "," + mOrphanPenalty + "," + mKeepWithNextPenalty + ","
+                + mLookBack;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PageBreaker))
+            return false;
+
+        final PageBreaker other = (PageBreaker) o;
+        return mWidowPenalty == other.mWidowPenalty && mOrphanPenalty == other.mOrphanPenalty
+                && mKeepWithNextPenalty == other.mKeepWithNextPenalty
+                && mLookBack == other.mLookBack;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mWidowPenalty;
+        result = 31 * result + mOrphanPenalty;
+        result = 31 * result + mKeepWithNextPenalty;
+        result = 31 * result + mLookBack;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "PageBreaker{" + getSignature() + "}";
+    }
+
+    /**
+     * Configures the penalties of a {@link PageBreaker}. A page left a tenth
+     * empty costs 100, and one left half empty costs 2500.
+     */
+    public static final class Builder {
+
+        private int mWidowPenalty = DEFAULT_WIDOW_PENALTY;
+        private int mOrphanPenalty = DEFAULT_ORPHAN_PENALTY;
+        private int mKeepWithNextPenalty = DEFAULT_KEEP_WITH_NEXT_PENALTY;
+        private int mLookBack = DEFAULT_LOOK_BACK;
+
+        /**
+         * @param penalty the cost of a page starting with the last line of a
+         *            paragraph of several lines, or 0 to allow widows.
+         * @return this builder.
+         */
+        public Builder setWidowPenalty(int penalty) {
+            mWidowPenalty = Math.max(0, penalty);
+            return this;
+        }
+
+        /**
+         * @param penalty the cost of a page ending with the first line of a
+         *            paragraph of several lines, or 0 to allow orphans.
+         * @return this builder.
+         */
+        public Builder setOrphanPenalty(int penalty) {
+            mOrphanPenalty = Math.max(0, penalty);
+            return this;
+        }
+
+        /**
+         * @param penalty the cost of a page ending with a line covered by a
+         *            {@link KeepWithNextSpan}.
+         * @return this builder.
+         */
+        public Builder setKeepWithNextPenalty(int penalty) {
+            mKeepWithNextPenalty = Math.max(0, penalty);
+            return this;
+        }
+
+        /**
+         * @param lines the number of lines a page may be left short by to
+         *            avoid a penalty. Breaking takes time in proportion to it.
+         * @return this builder.
+         */
+        public Builder setLookBack(int lines) {
+            mLookBack = Math.max(0, lines);
+            return this;
+        }
+
+        public PageBreaker build() {
+            return new PageBreaker(this);
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Arrays;
+
+/**
+ * An immutable index of the character offsets of the pages of a text. Each
+ * offset is stored as a variable length delta from the one before, which
+ * takes one or two bytes for most pages rather than the four of an
+ * {@code int[]}. The absolute offset of every {@link #CHECKPOINT_INTERVAL}th
+ * page is kept as well, so that finding the page containing an offset is a
+ * binary search followed by decoding at most that many deltas.<br>
+ * <br>
+ * Pages are appended to a {@link Builder} as they are measured, and
+ * {@link Builder#build(int, int)} takes a snapshot of the pages so far
+ * without copying them. A snapshot never changes, so it can be handed from
+ * the thread measuring the pages to the main thread.
+ *
+ * @see Paginator#getPageIndex()
+ * @author paulburke (ipaulpro)
+ */
+public final class PageIndex implements Parcelable {
+
+    /** Number of pages between each absolute offset kept. */
+    static final int CHECKPOINT_INTERVAL = 64;
+
+    private static final PageIndex EMPTY = new PageIndex(new byte[0], new int[0], new int[0],
+            0, 0);
+
+    private final byte[] mDeltas;
+    /** The offset of every interval'th page. */
+    private final int[] mCheckpoints;
+    /** The position in the deltas after each checkpoint page. */
+    private final int[] mPositions;
+    private final int mCount;
+    private final int mEnd;
+
+    private PageIndex(byte[] deltas, int[] checkpoints, int[] positions, int count, int end) {
+        mDeltas = deltas;
+        mCheckpoints = checkpoints;
+        mPositions = positions;
+        mCount = count;
+        mEnd = end;
+    }
+
+    /**
+     * @param offsets the character offsets of the pages, in order.
+     * @param end the character offset the last page ends at.
+     * @return an index of the pages.
+     */
+    public static PageIndex of(int[] offsets, int end) {
+        final Builder builder = new Builder(offsets.length);
+        for (int offset : offsets) {
+            builder.append(offset);
+        }
+        return builder.build(end);
+    }
+
+    /**
+     * @return an index without pages.
+     */
+    public static PageIndex empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return the number of pages.
+     */
+    public int getPageCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the character offset the last page ends at.
+     */
+    public int getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * @param page the index of the page.
+     * @return the character offset the page starts at.
+     */
+    public int getPageStart(int page) {
+        checkPage(page);
+        final int checkpoint = page / CHECKPOINT_INTERVAL;
+        int offset = mCheckpoints[checkpoint];
+        int position = mPositions[checkpoint];
+        for (int i = checkpoint * CHECKPOINT_INTERVAL; i < page; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mDeltas[position++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            offset += delta;
+        }
+        return offset;
+    }
+
+    /**
+     * @param page the index of the page.
+     * @return the character offset the page ends at.
+     */
+    public int getPageEnd(int page) {
+        checkPage(page);
+        return page < mCount - 1 ? getPageStart(page + 1) : mEnd;
+    }
+
+    /**
+     * Finds the page containing a character offset.
+     *
+     * @param offset the character offset.
+     * @return the index of the last page starting at or before the offset, 0
+     *         if the offset is before the first page, or -1 if there are no
+     *         pages.
+     */
+    public int findPage(int offset) {
+        if (mCount == 0)
+            return -1;
+
+        // The arrays may be shared with a builder that has appended more
+        final int checkpoints = (mCount - 1) / CHECKPOINT_INTERVAL + 1;
+        int checkpoint = Arrays.binarySearch(mCheckpoints, 0, checkpoints, offset);
+        if (checkpoint < 0)
+            checkpoint = Math.max(0, -checkpoint - 2);
+        // Empty pages start where the next one does, so take the last
+        while (checkpoint < checkpoints - 1 && mCheckpoints[checkpoint + 1] <= offset) {
+            checkpoint++;
+        }
+
+        int page = checkpoint * CHECKPOINT_INTERVAL;
+        int start = mCheckpoints[checkpoint];
+        int position = mPositions[checkpoint];
+        final int last = Math.min(mCount, page + CHECKPOINT_INTERVAL) - 1;
+        while (page < last) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mDeltas[position++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            if (start + delta > offset)
+                break;
+            start += delta;
+            page++;
+        }
+        return page;
+    }
+
+    /**
+     * @param page the index of the page.
+     * @return the fraction of the text before the page, from 0 to 1.
+     */
+    public float getProgress(int page) {
+        return mEnd > 0 ? (float) getPageStart(page) / mEnd : 0f;
+    }
+
+    /**
+     * @param progress the fraction of the text, from 0 to 1.
+     * @return the index of the page containing the character at that
+     *         fraction of the text, or -1 if there are no pages.
+     */
+    public int findPageAtProgress(float progress) {
+        final float clamped = Math.max(0f, Math.min(1f, progress));
+        return findPage(Math.min(mEnd - 1, (int) (clamped * mEnd)));
+    }
+
+    /**
+     * @return the character offsets of the pages.
+     */
+    public int[] toArray() {
+        final int[] offsets = new int[mCount];
+        int offset = 0;
+        int position = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (i % CHECKPOINT_INTERVAL == 0) {
+                offset = mCheckpoints[i / CHECKPOINT_INTERVAL];
+                position = mPositions[i / CHECKPOINT_INTERVAL];
+            } else {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = mDeltas[position++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                offset += delta;
+            }
+            offsets[i] = offset;
+        }
+        return offsets;
+    }
+
+    private void checkPage(int page) {
+        if (page < 0 || page >= mCount)
+            throw new IndexOutOfBoundsException("page = " + page + ", count = " + mCount);
+    }
+
+    @Override
+    public String toString() {
+        return "PageIndex{" + mCount + " pages, end = " + mEnd + "}";
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        final int checkpoints = (mCount + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL;
+        dest.writeInt(mCount);
+        dest.writeInt(mEnd);
+        dest.writeInt(checkpoints);
+        for (int i = 0; i < checkpoints; i++) {
+            dest.writeInt(mCheckpoints[i]);
+            dest.writeInt(mPositions[i]);
+        }
+        dest.writeByteArray(mDeltas, 0, mCount > 0 ? getDeltasLength() : 0);
+    }
+
+    /**
+     * @return the number of bytes of deltas used by the pages of this index,
+     *         which may share a longer array with other snapshots.
+     */
+    private int getDeltasLength() {
+        final int checkpoint = (mCount - 1) / CHECKPOINT_INTERVAL;
+        int position = mPositions[checkpoint];
+        for (int i = checkpoint * CHECKPOINT_INTERVAL; i < mCount - 1; i++) {
+            while (mDeltas[position] < 0) {
+                position++;
+            }
+            position++;
+        }
+        return position;
+    }
+
+    public static final Creator<PageIndex> CREATOR = new Creator<PageIndex>() {
+        @Override
+        public PageIndex createFromParcel(Parcel in) {
+            final int count = in.readInt();
+            final int end = in.readInt();
+            final int checkpointCount = in.readInt();
+            final int[] checkpoints = new int[checkpointCount];
+            final int[] positions = new int[checkpointCount];
+            for (int i = 0; i < checkpointCount; i++) {
+                checkpoints[i] = in.readInt();
+                positions[i] = in.readInt();
+            }
+            final byte[] deltas = in.createByteArray();
+            return new PageIndex(deltas, checkpoints, positions, count, end);
+        }
+
+        @Override
+        public PageIndex[] newArray(int size) {
+            return new PageIndex[size];
+        }
+    };
+
+    /**
+     * Appends pages to an index as they are measured. Not thread safe, but
+     * the snapshots it builds are.
+     */
+    public static final class Builder {
+
+        private byte[] mDeltas;
+        private int[] mCheckpoints;
+        private int[] mPositions;
+        private int mCount;
+        private int mLength;
+        private int mLast;
+
+        public Builder() {
+            this(CHECKPOINT_INTERVAL);
+        }
+
+        /**
+         * @param capacity the number of pages to make room for.
+         */
+        public Builder(int capacity) {
+            mDeltas = new byte[Math.max(16, capacity * 2)];
+            final int checkpoints = Math.max(1, capacity / CHECKPOINT_INTERVAL + 1);
+            mCheckpoints = new int[checkpoints];
+            mPositions = new int[checkpoints];
+        }
+
+        /**
+         * @param offset the character offset of the next page, which may not
+         *            be before that of the last page.
+         * @return this builder.
+         */
+        public Builder append(int offset) {
+            if (offset < mLast)
+                throw new IllegalArgumentException("offset " + offset
+                        + " is before the last page at " + mLast);
+
+            if (mCount % CHECKPOINT_INTERVAL == 0) {
+                final int checkpoint = mCount / CHECKPOINT_INTERVAL;
+                // Snapshots keep the arrays they were built with, so only
+                // ever write past their end, into the same or a new array
+                if (checkpoint == mCheckpoints.length) {
+                    mCheckpoints = Arrays.copyOf(mCheckpoints, checkpoint * 2);
+                    mPositions = Arrays.copyOf(mPositions, checkpoint * 2);
+                }
+                mCheckpoints[checkpoint] = offset;
+                mPositions[checkpoint] = mLength;
+            } else {
+                if (mLength + 5 > mDeltas.length)
+                    mDeltas = Arrays.copyOf(mDeltas, Math.max(mLength + 5, mDeltas.length * 2));
+                int delta = offset - mLast;
+                while ((delta & ~0x7f) != 0) {
+                    mDeltas[mLength++] = (byte) ((delta & 0x7f) | 0x80);
+                    delta >>>= 7;
+                }
+                mDeltas[mLength++] = (byte) delta;
+            }
+            mLast = offset;
+            mCount++;
+            return this;
+        }
+
+        /**
+         * @return the number of pages appended.
+         */
+        public int getPageCount() {
+            return mCount;
+        }
+
+        /**
+         * @param end the character offset the last page ends at.
+         * @return a snapshot of all the pages appended so far.
+         */
+        public PageIndex build(int end) {
+            return build(mCount, end);
+        }
+
+        /**
+         * Takes a snapshot of the first pages appended, sharing their storage
+         * with the builder.
+         *
+         * @param count the number of pages to include.
+         * @param end the character offset the last of them ends at.
+         * @return the snapshot.
+         */
+        public PageIndex build(int count, int end) {
+            if (count < 0 || count > mCount)
+                throw new IndexOutOfBoundsException("count = " + count + ", pages = " + mCount);
+            if (count == 0)
+                return EMPTY;
+            return new PageIndex(mDeltas, mCheckpoints, mPositions, count, end);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads the text of pages from a {@link TextSource} for the views that show
+ * them. Text held in memory is set right away, while the text of other
+ * sources, which read their stream to get it, is read on a background thread
+ * and set on the main thread once read. A view only gets the text of the last
+ * page it was given. Must be called from the main thread.
+ *
+ * @author paulburke (ipaulpro)
+ */
+final class PageTextLoader {
+
+    private static final String TAG = "PageTextLoader";
+
+    private static final ExecutorService EXECUTOR = Paginator.newExecutor(TAG,
+            Process.THREAD_PRIORITY_DEFAULT, 1);
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    private PageTextLoader() {
+    }
+
+    /**
+     * Sets the text of a page on a view, or a message if it can't be read.
+     *
+     * @param view the view showing the page.
+     * @param source the source of the text.
+     * @param start the character offset of the start of the page.
+     * @param end the character offset of the end of the page.
+     */
+    static void setText(final TextView view, TextSource source, int start, int end) {
+        if (source.asCharSequence() != null || start >= end) {
+            cancel(view);
+            setText(view, getText(source, start, end));
+            return;
+        }
+
+        view.setText(null);
+        load(view, source, start, end, new Callback() {
+            @Override
+            public void onText(CharSequence text) {
+                setText(view, text);
+            }
+        });
+    }
+
+    /**
+     * Sets the text of a page as the content description of a view that has
+     * none of its own to be read out.
+     *
+     * @param view the view showing the page.
+     * @param source the source of the text.
+     * @param start the character offset of the start of the page.
+     * @param end the character offset of the end of the page.
+     */
+    static void setContentDescription(final View view, TextSource source, int start, int end) {
+        if (source.asCharSequence() != null) {
+            cancel(view);
+            view.setContentDescription(getText(source, start, end));
+            return;
+        }
+
+        view.setContentDescription(null);
+        load(view, source, start, end, new Callback() {
+            @Override
+            public void onText(CharSequence text) {
+                view.setContentDescription(text);
+            }
+        });
+    }
+
+    /**
+     * Drops the text being read for a view, such as when it is let go of.
+     */
+    static void cancel(View view) {
+        view.setTag(R.id.text_view_pager_request, null);
+    }
+
+    /**
+     * @return the text of the window, or null if it can't be read or has not
+     *         been scanned yet.
+     */
+    static CharSequence getText(TextSource source, int start, int end) {
+        try {
+            return source.getText(start, Math.max(start, end));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read text " + start + "-" + end, e);
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "Text " + start + "-" + end + " has not been read", e);
+            return null;
+        }
+    }
+
+    private static void setText(TextView view, CharSequence text) {
+        if (text != null)
+            view.setText(text);
+        else
+            view.setText(R.string.unable_to_load_text);
+    }
+
+    private interface Callback {
+        void onText(CharSequence text);
+    }
+
+    private static void load(final View view, final TextSource source, final int start,
+            final int end, final Callback callback) {
+        final Object request = new Object();
+        view.setTag(R.id.text_view_pager_request, request);
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CharSequence text = getText(source, start, end);
+                HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (view.getTag(R.id.text_view_pager_request) != request)
+                            return;
+                        view.setTag(R.id.text_view_pager_request, null);
+                        callback.onText(text);
+                    }
+                });
+            }
+        });
+    }
+}
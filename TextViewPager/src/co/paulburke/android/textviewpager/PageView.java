@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.view.Gravity;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * A page that draws its lines straight from the layouts the {@link Paginator}
+ * already made of the document, instead of laying out its text again like a
+ * {@link TextView} would. The lines are drawn by translating the canvas to the
+ * top of the page and clipping it to the page, so showing a page does no text
+ * measurement at all.<br>
+ * <br>
+ * Only plain pages can be drawn this way, see {@link #canReplace(TextView)}.
+ *
+ * @author paulburke (ipaulpro)
+ */
+public class PageView extends View {
+
+    private DocumentLayout.Slice mSlice;
+
+    public PageView(Context context) {
+        super(context);
+    }
+
+    /**
+     * Copies the padding and background of a page view, so this view looks
+     * the same.
+     *
+     * @param template the text view of another page.
+     */
+    void copyStyle(TextView template) {
+        setPadding(template.getCompoundPaddingLeft(), template.getPaddingTop(),
+                template.getCompoundPaddingRight(), template.getPaddingBottom());
+
+        final Drawable background = template.getBackground();
+        final Drawable.ConstantState state = background != null ? background
+                .getConstantState() : null;
+        final Drawable copy = state != null ? state.newDrawable(getResources()) : null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            setBackgroundJellyBean(copy);
+        else
+            setBackgroundLegacy(copy);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void setBackgroundJellyBean(Drawable background) {
+        setBackground(background);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void setBackgroundLegacy(Drawable background) {
+        setBackgroundDrawable(background);
+    }
+
+    /**
+     * @param slice the lines of the page.
+     */
+    void setSlice(DocumentLayout.Slice slice) {
+        mSlice = slice;
+        invalidate();
+    }
+
+    /**
+     * Releases the lines of the page.
+     */
+    void clear() {
+        mSlice = null;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mSlice == null)
+            return;
+
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mSlice.draw(canvas, getWidth() - getPaddingLeft() - getPaddingRight());
+        canvas.restore();
+    }
+
+    /**
+     * @param view the text view of a page.
+     * @return true if the page looks the same drawn by a {@link PageView}:
+     *         text at the top start of the view, with no compound drawables,
+     *         ellipsizing, selection or movement method.
+     */
+    static boolean canReplace(TextView view) {
+        final int gravity = view.getGravity();
+        if ((gravity & Gravity.VERTICAL_GRAVITY_MASK) != Gravity.TOP
+                || (gravity & Gravity.HORIZONTAL_GRAVITY_MASK) != Gravity.LEFT)
+            return false;
+
+        for (Drawable drawable : view.getCompoundDrawables()) {
+            if (drawable != null)
+                return false;
+        }
+
+        if (view.getMovementMethod() != null || view.getEllipsize() != null)
+            return false;
+
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || !isTextSelectable(view);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean isTextSelectable(TextView view) {
+        return view.isTextSelectable();
+    }
+}
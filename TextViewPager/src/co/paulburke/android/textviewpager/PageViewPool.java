@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+
+/**
+ * Bounded pool of page views that have been removed from the pager, kept for
+ * reuse so that turning pages doesn't inflate a new view each time. Views are
+ * pooled by the layout resource they were inflated from, and {@link PageView}s
+ * under {@link #PAGE_VIEW}. Must only be used from the main thread.
+ *
+ * @see TextViewPagerAdapter#getPageViewPool()
+ * @author paulburke (ipaulpro)
+ */
+public class PageViewPool {
+
+    /** Default number of views kept for each layout resource. */
+    public static final int DEFAULT_MAX_SIZE = 4;
+
+    /** Key that {@link PageView}s are pooled under. */
+    public static final int PAGE_VIEW = Integer.MIN_VALUE;
+
+    private final SparseArray<ArrayList<View>> mViews =
+            new SparseArray<ArrayList<View>>();
+    private int mMaxSize = DEFAULT_MAX_SIZE;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * @param layoutRes the layout resource identifier the view was inflated
+     *            from, -1 for the default view, or {@link #PAGE_VIEW}.
+     * @return a pooled view, or null if there is none.
+     */
+    public View acquire(int layoutRes) {
+        final ArrayList<View> views = mViews.get(layoutRes);
+        if (views == null || views.isEmpty()) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        return views.remove(views.size() - 1);
+    }
+
+    /**
+     * Returns a view to the pool, if there is room for it. Its text is
+     * cleared so that the pool doesn't hold on to it.
+     *
+     * @param layoutRes the layout resource identifier the view was inflated
+     *            from, -1 for the default view, or {@link #PAGE_VIEW}.
+     * @param view a view that has been removed from its parent.
+     */
+    public void release(int layoutRes, View view) {
+        ArrayList<View> views = mViews.get(layoutRes);
+        if (views == null) {
+            views = new ArrayList<View>(mMaxSize);
+            mViews.put(layoutRes, views);
+        }
+
+        if (views.size() < mMaxSize && !views.contains(view)) {
+            if (view instanceof TextView)
+                ((TextView) view).setText(null);
+            else if (view instanceof PageView)
+                ((PageView) view).clear();
+            views.add(view);
+        }
+    }
+
+    /**
+     * @return the number of views kept for each layout resource.
+     */
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @param maxSize the number of views to keep for each layout resource, or
+     *            0 to disable pooling.
+     */
+    public void setMaxSize(int maxSize) {
+        mMaxSize = Math.max(0, maxSize);
+        for (int i = 0; i < mViews.size(); i++) {
+            final ArrayList<View> views = mViews.valueAt(i);
+            while (views.size() > mMaxSize) {
+                views.remove(views.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * @return the number of views in the pool.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < mViews.size(); i++) {
+            size += mViews.valueAt(i).size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of times a view was taken from the pool.
+     */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of times a view had to be created because the pool
+     *         was empty.
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the fraction of requests served from the pool, from 0 to 1.
+     */
+    public float getHitRate() {
+        final int total = mHitCount + mMissCount;
+        return total > 0 ? (float) mHitCount / total : 0f;
+    }
+
+    /**
+     * Releases all pooled views.
+     */
+    public void clear() {
+        mViews.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "PageViewPool{size=" + size() + ", hits=" + mHitCount + ", misses="
+                + mMissCount + "}";
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Size-bounded cache of pagination results on disk, so a document reopened
+ * with the same settings doesn't have to be measured again. Each result is
+ * stored in its own file, named after its {@link PaginationKey}:
+ *
+ * <pre>
+ * int magic, int version, int totalLines, int linesPerPage, int pageCount,
+ * int[pageCount] offsets, int[pageCount] lines
+ * </pre>
+ *
+ * The offsets are read through a memory-mapped {@link IntBuffer}, so they are
+ * not copied into the heap unless {@link Entry#toArray()} is called. When the
+ * total size of the files exceeds the limit, the least recently used are
+ * deleted. Results for keys that aren't {@link PaginationKey#isPersistable()
+ * persistable} are neither stored nor found.
+ *
+ * @author paulburke (ipaulpro)
+ */
+public class PaginationCache {
+
+    private static final String TAG = "PaginationCache";
+    private static final boolean DEBUG = false;
+
+    private static final String DIRECTORY = "textviewpager";
+    private static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final int MAGIC = 0x54565043; // "TVPC"
+    // 2: pages break at the last line that fits rather than every n lines
+    // 3: the line each page starts at follows the offsets
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 5 * 4;
+
+    /**
+     * A cached pagination result.
+     */
+    public static class Entry {
+        /** Read-only, memory-mapped character offsets of the pages. */
+        public final IntBuffer offsets;
+        /** Read-only, memory-mapped index of the line each page starts at. */
+        public final IntBuffer lines;
+        /** Total number of lines in the layout. */
+        public final int totalLines;
+        /** Number of lines that fit on the first page. */
+        public final int linesPerPage;
+
+        Entry(IntBuffer offsets, IntBuffer lines, int totalLines, int linesPerPage) {
+            this.offsets = offsets;
+            this.lines = lines;
+            this.totalLines = totalLines;
+            this.linesPerPage = linesPerPage;
+        }
+
+        /**
+         * @return a copy of the offsets on the heap.
+         */
+        public int[] toArray() {
+            final int[] array = new int[offsets.limit()];
+            offsets.duplicate().get(array);
+            return array;
+        }
+
+        /**
+         * @return a copy of the lines the pages start at on the heap.
+         */
+        public int[] toLineArray() {
+            final int[] array = new int[lines.limit()];
+            lines.duplicate().get(array);
+            return array;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    /**
+     * @param directory the directory to store the files in. It is only used
+     *            by this cache.
+     * @param maxSize the maximum total size of the files, in bytes.
+     */
+    public PaginationCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Creates a cache in the application's cache directory.
+     *
+     * @param context the context to get the cache directory from.
+     * @return a new cache with the default size limit.
+     */
+    public static PaginationCache create(Context context) {
+        return new PaginationCache(new File(context.getCacheDir(), DIRECTORY), DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param key the key of the pagination result.
+     * @return the cached result, or null if there is none.
+     */
+    public synchronized Entry get(PaginationKey key) {
+        if (!key.isPersistable())
+            return null;
+
+        final File file = new File(mDirectory, key.toFileName());
+        if (!file.exists())
+            return null;
+
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            final FileChannel channel = input.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt() != MAGIC
+                    || buffer.getInt() != VERSION) {
+                file.delete();
+                return null;
+            }
+
+            final int totalLines = buffer.getInt();
+            final int linesPerPage = buffer.getInt();
+            final int pageCount = buffer.getInt();
+            if (pageCount <= 0 || buffer.remaining() != pageCount * 8) {
+                file.delete();
+                return null;
+            }
+
+            // Mark as recently used
+            file.setLastModified(System.currentTimeMillis());
+
+            if (DEBUG) Log.d(TAG, "get hit " + key + ", " + pageCount + " pages");
+
+            final IntBuffer pages = buffer.slice().asIntBuffer();
+            pages.limit(pageCount);
+            buffer.position(buffer.position() + pageCount * 4);
+            return new Entry(pages.asReadOnlyBuffer(),
+                    buffer.slice().asIntBuffer().asReadOnlyBuffer(), totalLines, linesPerPage);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Stores a pagination result, evicting the least recently used results if
+     * the cache grows past its maximum size.
+     *
+     * @param key the key of the pagination result.
+     * @param offsets character offsets of the pages.
+     * @param lines index of the line each page starts at.
+     * @param totalLines total number of lines in the layout.
+     * @param linesPerPage number of lines that fit on the first page.
+     */
+    public synchronized void put(PaginationKey key, int[] offsets, int[] lines,
+            int totalLines, int linesPerPage) {
+        if (!key.isPersistable())
+            return;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+
+        final File file = new File(mDirectory, key.toFileName());
+        final File temp = new File(mDirectory, key.toFileName() + ".tmp");
+
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(totalLines);
+            output.writeInt(linesPerPage);
+            output.writeInt(offsets.length);
+            for (int offset : offsets) {
+                output.writeInt(offset);
+            }
+            for (int line : lines) {
+                output.writeInt(line);
+            }
+            output.close();
+            output = null;
+
+            // Replace atomically, so readers never see a partial file
+            if (!temp.renameTo(file))
+                throw new IOException("Unable to rename " + temp);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file, e);
+            temp.delete();
+            return;
+        } finally {
+            closeQuietly(output);
+        }
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Deletes all cached results.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(long maxSize) {
+        final File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxSize)
+            return;
+
+        // Oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length && size > maxSize; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                if (DEBUG) Log.d(TAG, "trimToSize evicted " + files[i].getName());
+                size -= length;
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.graphics.Typeface;
+import android.os.Parcel;
+import android.text.ParcelableSpan;
+import android.text.Spanned;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.text.style.LineHeightSpan;
+import android.text.style.MetricAffectingSpan;
+import android.text.style.ParagraphStyle;
+import android.text.style.ReplacementSpan;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Identifies the result of paginating a text: a digest of the text plus
+ * everything that affects its layout. Keys built from the same text and
+ * settings are equal, even across processes, as long as the typeface is one
+ * of the system defaults or has been named with
+ * {@link #setTypefaceName(Typeface, String)}. Keys with other typefaces are
+ * only equal within the same process, so they are not
+ * {@link #isPersistable() persisted}.
+ *
+ * @see PaginationCache
+ * @author paulburke (ipaulpro)
+ */
+public final class PaginationKey {
+
+    private static final int DIGEST_BLOCK_LENGTH = 4096;
+
+    /** Names given to custom typefaces, which are the same in every process. */
+    private static final Map<Typeface, String> sTypefaceNames = Collections
+            .synchronizedMap(new WeakHashMap<Typeface, String>());
+
+    private final String mTextDigest;
+    private final String mLayoutSignature;
+    private final boolean mPersistable;
+
+    /**
+     * @param textDigest digest of the text, see {@link #digest(CharSequence)}.
+     * @param params the parameters the text is laid out with.
+     * @param layoutRes the layout resource identifier of the page views.
+     */
+    public PaginationKey(String textDigest, PagingParams params, int layoutRes) {
+        this(textDigest, params, layoutRes, null);
+    }
+
+    /**
+     * @param textDigest digest of the text, see {@link #digest(CharSequence)}.
+     * @param params the parameters the text is laid out with.
+     * @param layoutRes the layout resource identifier of the page views.
+     * @param breaker the page breaker the pages are broken with, or null.
+     */
+    public PaginationKey(String textDigest, PagingParams params, int layoutRes,
+            PageBreaker breaker) {
+        mTextDigest = textDigest;
+        mLayoutSignature = signature(params, layoutRes)
+                + (breaker != null ? "-b" + breaker.getSignature() : "");
+        final Typeface typeface = params.paint.getTypeface();
+        mPersistable = isSystemTypeface(typeface) || sTypefaceNames.containsKey(typeface);
+    }
+
+    /**
+     * Names a custom typeface, such as one created from an asset, so that
+     * results laid out with it can be stored on disk. The name must identify
+     * the font file and style in every process, for example the path of the
+     * asset, and no other typeface may be given the same name.
+     *
+     * @param typeface the typeface.
+     * @param name the name of the typeface, or null to remove it.
+     */
+    public static void setTypefaceName(Typeface typeface, String name) {
+        if (name != null)
+            sTypefaceNames.put(typeface, name);
+        else
+            sTypefaceNames.remove(typeface);
+    }
+
+    /**
+     * @return true if the key identifies the same text and layout in another
+     *         process, so its result can be stored on disk. Custom typefaces
+     *         can't be told apart across processes unless they are named with
+     *         {@link #setTypefaceName(Typeface, String)}.
+     */
+    public boolean isPersistable() {
+        return mPersistable;
+    }
+
+    /**
+     * @return the name of the file holding this key's pages, unique to the
+     *         text and its layout.
+     */
+    public String toFileName() {
+        return digest(mTextDigest + mLayoutSignature);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PaginationKey))
+            return false;
+
+        final PaginationKey other = (PaginationKey) o;
+        return mTextDigest.equals(other.mTextDigest)
+                && mLayoutSignature.equals(other.mLayoutSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mTextDigest.hashCode() + mLayoutSignature.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "PaginationKey{" + mTextDigest + mLayoutSignature + "}";
+    }
+
+    /**
+     * Computes a SHA-1 digest of the characters of the text and of the class,
+     * range and flags of each of its spans, along with the content of spans
+     * that are {@link ParcelableSpan}s. This is linear in the length of the
+     * text, so should not be called on the UI thread for long text.
+     *
+     * @param text the text to digest.
+     * @return the digest as a hexadecimal string, or null if the text has a
+     *         span that affects the layout but can't be identified by its
+     *         content, in which case its pages can't be cached.
+     */
+    public static String digest(CharSequence text) {
+        final MessageDigest digest = newDigest();
+        final int length = text.length();
+        final char[] chars = new char[DIGEST_BLOCK_LENGTH];
+        final byte[] bytes = new byte[DIGEST_BLOCK_LENGTH * 2];
+
+        for (int start = 0; start < length; start += DIGEST_BLOCK_LENGTH) {
+            final int end = Math.min(length, start + DIGEST_BLOCK_LENGTH);
+            TextUtils.getChars(text, start, end, chars, 0);
+            for (int i = 0, count = end - start; i < count; i++) {
+                bytes[i * 2] = (byte) (chars[i] >> 8);
+                bytes[i * 2 + 1] = (byte) chars[i];
+            }
+            digest.update(bytes, 0, (end - start) * 2);
+        }
+
+        if (text instanceof Spanned && !digestSpans((Spanned) text, digest))
+            return null;
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Adds the spans of the text to a digest.
+     *
+     * @return false if a span affects the layout in a way the digest can't
+     *         capture.
+     */
+    private static boolean digestSpans(Spanned text, MessageDigest digest) {
+        final Object[] spans = text.getSpans(0, text.length(), Object.class);
+        final Parcel parcel = Parcel.obtain();
+        try {
+            for (Object span : spans) {
+                if (span instanceof ParcelableSpan) {
+                    parcel.setDataPosition(0);
+                    parcel.setDataSize(0);
+                    ((ParcelableSpan) span).writeToParcel(parcel, 0);
+                    digest.update(parcel.marshall());
+                } else if (span instanceof MetricAffectingSpan
+                        || span instanceof ReplacementSpan || span instanceof LineHeightSpan
+                        || span instanceof ParagraphStyle) {
+                    return false;
+                }
+                digest.update(toBytes(span.getClass().getName() + ":"
+                        + text.getSpanStart(span) + "," + text.getSpanEnd(span) + ","
+                        + text.getSpanFlags(span) + ";"));
+            }
+        } finally {
+            parcel.recycle();
+        }
+        return true;
+    }
+
+    private static byte[] toBytes(String value) {
+        final byte[] bytes = new byte[value.length() * 2];
+        for (int i = 0, length = value.length(); i < length; i++) {
+            final char c = value.charAt(i);
+            bytes[i * 2] = (byte) (c >> 8);
+            bytes[i * 2 + 1] = (byte) c;
+        }
+        return bytes;
+    }
+
+    private static String signature(PagingParams params, int layoutRes) {
+        final TextPaint paint = params.paint;
+        return "-" + params.width + "x" + params.height
+                + "-p" + params.paddingLeft + "," + params.paddingTop + ","
+                + params.paddingRight + "," + params.paddingBottom
+                + "-s" + paint.getTextSize() + "," + paint.getTextScaleX() + ","
+                + paint.getFlags()
+                + "-t" + typefaceName(paint.getTypeface())
+                + "-l" + params.spacingMult + "," + params.spacingAdd + ","
+                + params.includePad
+                + "-r" + layoutRes;
+    }
+
+    private static boolean isSystemTypeface(Typeface typeface) {
+        return typeface == null || typeface == Typeface.DEFAULT
+                || typeface == Typeface.DEFAULT_BOLD || typeface == Typeface.SANS_SERIF
+                || typeface == Typeface.SERIF || typeface == Typeface.MONOSPACE;
+    }
+
+    /**
+     * Custom typefaces have no identity that survives the process, so unless
+     * they have been given a name they are named by instance and only match
+     * within the same process.
+     */
+    private static String typefaceName(Typeface typeface) {
+        if (typeface == null || typeface == Typeface.DEFAULT)
+            return "default";
+        if (typeface == Typeface.DEFAULT_BOLD)
+            return "default-bold";
+        if (typeface == Typeface.SANS_SERIF)
+            return "sans-serif";
+        if (typeface == Typeface.SERIF)
+            return "serif";
+        if (typeface == Typeface.MONOSPACE)
+            return "monospace";
+        final String name = sTypefaceNames.get(typeface);
+        if (name != null)
+            return "font:" + name + "," + typeface.getStyle();
+        return "custom" + typeface.getStyle() + "@" + System.identityHashCode(typeface);
+    }
+
+    private static String digest(String value) {
+        final MessageDigest digest = newDigest();
+        digest.update(toBytes(value));
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device supports SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.text.SpannedString;
+import android.util.Log;
+
+import java.nio.IntBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide, memory-bounded LRU cache of pagination results, so that
+ * returning to a page size that has already been measured, such as rotating
+ * back to a previous orientation, costs nothing. The text digest of each
+ * {@link PaginationKey} is remembered for as long as the text is referenced,
+ * so looking up a result doesn't require reading the text again. Only the
+ * digests of immutable text are remembered, since text such as an
+ * {@link android.text.Editable} keeps its identity when it is edited.<br>
+ * <br>
+ * The cache releases memory when the system asks the application to trim its
+ * memory.
+ *
+ * @author paulburke (ipaulpro)
+ */
+public class PaginationMemoryCache {
+
+    private static final String TAG = "PaginationMemoryCache";
+    private static final boolean DEBUG = false;
+
+    /** Fraction of the maximum heap the cache may use. */
+    private static final int HEAP_FRACTION = 64;
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static PaginationMemoryCache sInstance;
+
+    private final LruCache<PaginationKey, PaginationCache.Entry> mCache;
+    private final Map<CharSequence, String> mDigests = Collections
+            .synchronizedMap(new WeakHashMap<CharSequence, String>());
+
+    /**
+     * @param maxSize the maximum size of the cached results, in bytes.
+     */
+    public PaginationMemoryCache(int maxSize) {
+        mCache = new LruCache<PaginationKey, PaginationCache.Entry>(maxSize) {
+            @Override
+            protected int sizeOf(PaginationKey key, PaginationCache.Entry value) {
+                return value.offsets.limit() * 8 + ENTRY_OVERHEAD;
+            }
+        };
+    }
+
+    /**
+     * @param context any context, used to listen for memory trim requests.
+     * @return the shared instance.
+     */
+    public static synchronized PaginationMemoryCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PaginationMemoryCache(
+                    (int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION));
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+                TrimMemoryCallbacks.register(context, sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param key the key of the pagination result.
+     * @return the cached result, or null if there is none.
+     */
+    public PaginationCache.Entry get(PaginationKey key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * @param key the key of the pagination result.
+     * @param offsets character offsets of the pages.
+     * @param lines index of the line each page starts at.
+     * @param totalLines total number of lines in the layout.
+     * @param linesPerPage number of lines that fit on the first page.
+     */
+    public void put(PaginationKey key, int[] offsets, int[] lines, int totalLines,
+            int linesPerPage) {
+        mCache.put(key, new PaginationCache.Entry(IntBuffer.wrap(offsets).asReadOnlyBuffer(),
+                IntBuffer.wrap(lines).asReadOnlyBuffer(), totalLines, linesPerPage));
+    }
+
+    /**
+     * Returns the digest of the text, computing it only if the same text has
+     * not been digested before. Looking the text up hashes it, which reads
+     * all of it the first time for a String, so this should not be called on
+     * the UI thread for long text.
+     *
+     * @param text the text to digest.
+     * @return the digest, or null if the text can't be digested, see
+     *         {@link PaginationKey#digest(CharSequence)}.
+     */
+    public String digest(CharSequence text) {
+        if (!isImmutable(text))
+            return PaginationKey.digest(text);
+
+        String digest = mDigests.get(text);
+        if (digest == null) {
+            digest = PaginationKey.digest(text);
+            mDigests.put(text, digest);
+        }
+        return digest;
+    }
+
+    /**
+     * @return true if the characters and spans of the text can't change.
+     */
+    static boolean isImmutable(CharSequence text) {
+        return text instanceof String || text instanceof SpannedString
+                || text instanceof CompactText || text instanceof CompressedText
+                || text instanceof GrowingText || text instanceof MappedText;
+    }
+
+    /**
+     * Releases cached results according to how badly memory is needed.
+     *
+     * @param level the level from
+     *            {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (DEBUG) Log.d(TAG, "trimMemory level = " + level + ", size = " + mCache.size());
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mCache.trimToSize(mCache.size() / 2);
+        }
+    }
+
+    /**
+     * Releases all cached results.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+        mDigests.clear();
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class TrimMemoryCallbacks implements ComponentCallbacks2 {
+
+        private final PaginationMemoryCache mCache;
+
+        private TrimMemoryCallbacks(PaginationMemoryCache cache) {
+            mCache = cache;
+        }
+
+        static void register(Context context, PaginationMemoryCache cache) {
+            context.getApplicationContext().registerComponentCallbacks(
+                    new TrimMemoryCallbacks(cache));
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            mCache.trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            mCache.evictAll();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    }
+}
@@ -0,0 +1,1523 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.Log;
+
+import co.paulburke.android.textviewpager.PagingLayoutListener.OnPageMeasureListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Calculates the character offsets of each page on a background thread, so
+ * that the text never has to be laid out in full on the UI thread. Results are
+ * delivered to an {@link OnPageMeasureListener} on the main thread, exactly as
+ * they would be from a {@link PagingLayoutListener}.<br>
+ * <br>
+ * The text is laid out in chunks split at paragraph breaks. If the listener is
+ * an {@link OnPageBatchMeasureListener}, the pages measured so far are
+ * published in batches while the rest of the text is still being measured.<br>
+ * <br>
+ * Long text held in memory is split into segments at paragraph breaks, whose
+ * chunks are laid out concurrently on a pool with a thread for each core but
+ * one. Lines never break across a paragraph, so the pages are the same as if
+ * the text were laid out in order. Text read from a {@link TextSource} is laid
+ * out as it is scanned, so that only the chunk being laid out is held in
+ * memory.<br>
+ * <br>
+ * If a {@link PaginationMemoryCache} or {@link PaginationCache} is set,
+ * results are looked up there before measuring, and stored once measured.
+ * Only text held in memory is cached, since the text has to be digested,
+ * and not text with layout spans that can't be digested. A result in the
+ * memory cache for the same immutable text as the previous request is
+ * delivered without going through the background thread.<br>
+ * <br>
+ * If an {@link AdvanceCache} is set, the lines of plain text are broken from
+ * the cached advances of its characters where possible, so that paginating
+ * it again for another width measures no text. Lines broken this way have no
+ * layout to draw, so the cache is not used while layouts are retained for
+ * page views (see {@link #setRetainLayouts(boolean)}). Nor is it used from
+ * API 23, where StaticLayout breaks lines by rules the cached breaks don't
+ * reproduce.<br>
+ * <br>
+ * The lines of the latest result are kept, so that when the same text is
+ * paginated again with only the height changed, such as when the keyboard is
+ * shown, the lines are regrouped into pages on another thread without
+ * measuring any text.<br>
+ * <br>
+ * After text has been edited, {@link #paginateEdit(TextSource, int, int, int,
+ * OnPageMeasureListener)} lays out the text again from just before the edit,
+ * keeping the pages before it, and stops as soon as the pages line up with
+ * those of the previous result again.<br>
+ * <br>
+ * {@link #paginateFrom(TextSource, PagingParams, int, OnPageMeasureListener)}
+ * also lays out the pages around an offset on another thread, to show them
+ * before the text ahead of the offset has been measured.<br>
+ * <br>
+ * Each Paginator runs at most one request at a time; starting a new one
+ * cancels the previous.
+ *
+ * @see PagingParams
+ * @author paulburke (ipaulpro)
+ */
+public class Paginator {
+
+    private static final String TAG = "Paginator";
+    private static final boolean DEBUG = false;
+
+    /** Minimum number of characters laid out at once. */
+    static final int CHUNK_LENGTH = 8 * 1024;
+    /** Maximum number of characters laid out at once, for long paragraphs. */
+    static final int MAX_CHUNK_LENGTH = 4 * CHUNK_LENGTH;
+
+    /** Characters sampled to estimate the width of the text. */
+    private static final int FIRST_PAGE_SAMPLE_LENGTH = 64;
+    /** Shortest prefix laid out to measure the first page. */
+    private static final int MIN_FIRST_PAGE_LENGTH = 256;
+
+    private static final int DEFAULT_FIRST_BATCH_SIZE = 20;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** Returned by findChunkEnd when more text is needed to find the end. */
+    static final int MORE_TEXT_NEEDED = -2;
+
+    /** Minimum number of characters of a segment laid out by one thread. */
+    private static final int SEGMENT_LENGTH = 2 * MAX_CHUNK_LENGTH;
+    private static final int LAYOUT_THREADS = Math.max(1,
+            Runtime.getRuntime().availableProcessors() - 1);
+
+    /**
+     * Listener that is also notified of the pages measured so far, before the
+     * whole text has been measured.
+     */
+    public interface OnPageBatchMeasureListener extends OnPageMeasureListener {
+        /**
+         * Called when another batch of pages has been measured. The final
+         * offsets are delivered to
+         * {@link OnPageMeasureListener#onPageMeasure(int[], int, int)}.
+         *
+         * @param offsets character offsets of the pages measured so far.
+         * @param measuredEnd character offset at which the last of these pages
+         *            ends.
+         * @param estimatedCount estimate of the total number of pages.
+         */
+        public void onPageBatchMeasure(int[] offsets, int measuredEnd, int estimatedCount);
+    }
+
+    /**
+     * Listener that is also notified of the pages around the anchor of
+     * {@link Paginator#paginateFrom(TextSource, PagingParams, int, OnPageMeasureListener)},
+     * before the text ahead of them has been measured.
+     */
+    public interface OnAnchoredPageMeasureListener extends OnPageBatchMeasureListener {
+        /**
+         * Called when the pages around the anchor have been measured, unless
+         * the text has already been measured past it. Pages are counted from
+         * the line of the anchor, so they may break at other lines than the
+         * pages delivered once the text ahead of them is measured, and their
+         * numbers are estimates.
+         *
+         * @param offsets character offsets of the pages around the anchor.
+         * @param measuredEnd character offset at which the last of these pages
+         *            ends.
+         * @param anchorPage index in {@code offsets} of the page containing
+         *            the anchor.
+         * @param estimatedFirstPage estimate of the number of pages before the
+         *            first of these, which is 0 only if it starts the text.
+         * @param estimatedCount estimate of the total number of pages.
+         */
+        public void onAnchoredPageMeasure(int[] offsets, int measuredEnd, int anchorPage,
+                int estimatedFirstPage, int estimatedCount);
+    }
+
+    private static final ExecutorService EXECUTOR = newExecutor(TAG,
+            Process.THREAD_PRIORITY_BACKGROUND, 1);
+    private static final ExecutorService PREFETCH_EXECUTOR = newExecutor(TAG + "-prefetch",
+            Process.THREAD_PRIORITY_LOWEST, 1);
+    private static final ExecutorService LAYOUT_EXECUTOR = newExecutor(TAG + "-layout",
+            Process.THREAD_PRIORITY_BACKGROUND, LAYOUT_THREADS);
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Task mTask;
+    private Anchor mAnchor;
+    private Prefetch mPrefetch;
+    private TextSource mSource;
+    private PagingParams mParams;
+
+    private int mFirstBatchSize = DEFAULT_FIRST_BATCH_SIZE;
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+
+    private PaginationMemoryCache mMemoryCache;
+    private PaginationCache mCache;
+    private AdvanceCache mAdvanceCache;
+    private PageBreaker mPageBreaker;
+    private int mLayoutRes = -1;
+
+    private boolean mRetainLayouts;
+    private DocumentLayout mDocument;
+    private boolean mParallel = LAYOUT_THREADS > 1;
+
+    /** The pages of the latest request published or delivered so far. */
+    private PageIndex mPageIndex;
+    /** The result last delivered for the latest request, if any. */
+    private int[] mResult;
+    /** The line each page of the result starts at. */
+    private int[] mResultPageLines;
+    private int mResultLines;
+    private int mResultLinesPerPage;
+    /** The lines of the latest result, if they were all measured. */
+    private LineTable mResultTable;
+    /** The immutable text last digested, and its digest. */
+    private CharSequence mDigestedText;
+    private String mTextDigest;
+    /** The page breaker of the latest request. */
+    private PageBreaker mResultBreaker;
+
+    /**
+     * Starts paginating the text, cancelling any request still in progress.
+     * Must be called from the main thread.
+     *
+     * @param text the text to paginate.
+     * @param params the page size and paint to lay the text out with.
+     * @param listener notified on the main thread with the page offsets.
+     */
+    public void paginate(CharSequence text, PagingParams params, OnPageMeasureListener listener) {
+        paginate(TextSource.of(text), params, listener);
+    }
+
+    /**
+     * Starts paginating the text of a source, cancelling any request still in
+     * progress. Must be called from the main thread.
+     *
+     * @param source the source of the text to paginate.
+     * @param params the page size and paint to lay the text out with.
+     * @param listener notified on the main thread with the page offsets.
+     */
+    public void paginate(TextSource source, PagingParams params,
+            OnPageMeasureListener listener) {
+        // Lines break the same for any height
+        final LineTable lines = mResultTable;
+        final DocumentLayout document = mDocument;
+        final boolean regroup = lines != null && isSameText(source, mSource)
+                && mParams != null && params.width == mParams.width
+                && params.isSameStyle(mParams) && mResultBreaker == mPageBreaker;
+
+        cancel();
+        if (!isSameText(source, mSource) || !params.isSameStyle(mParams))
+            cancelPrefetch();
+
+        mSource = source;
+        mParams = params;
+        mResult = null;
+        mResultPageLines = null;
+        mPageIndex = null;
+        mResultTable = null;
+        mTask = new Task(source, params, listener);
+        if (mTask.mDigest == null) {
+            mDigestedText = null;
+            mTextDigest = null;
+        }
+        if (regroup) {
+            if (document != null)
+                mTask.mDocument = document;
+            // Breaking the pages can take a while with a page breaker
+            mTask.setRegrouped(lines);
+            EXECUTOR.execute(mTask);
+        } else if (!mTask.deliverFromMemory()) {
+            EXECUTOR.execute(mTask);
+        }
+        mDocument = mTask.mDocument;
+    }
+
+    /**
+     * Starts paginating the text of a source, like
+     * {@link #paginate(TextSource, PagingParams, OnPageMeasureListener)}, while
+     * also laying out the pages around an offset, such as where the text was
+     * last read. If the listener is an {@link OnAnchoredPageMeasureListener},
+     * those pages are delivered as soon as they are measured, before the text
+     * ahead of them. Only text held in memory is anchored. Must be called
+     * from the main thread.
+     *
+     * @param source the source of the text to paginate.
+     * @param params the page size and paint to lay the text out with.
+     * @param anchor the character offset to measure the pages around.
+     * @param listener notified on the main thread with the page offsets.
+     */
+    public void paginateFrom(TextSource source, PagingParams params, int anchor,
+            OnPageMeasureListener listener) {
+        paginate(source, params, listener);
+
+        final CharSequence text = source.asCharSequence();
+        if (mTask == null || mTask.mImmediate || anchor <= 0 || text == null
+                || anchor >= text.length() || text.length() <= SEGMENT_LENGTH
+                || !(listener instanceof OnAnchoredPageMeasureListener))
+            return;
+
+        mAnchor = new Anchor(mTask, text, anchor);
+        LAYOUT_EXECUTOR.execute(mAnchor);
+    }
+
+    /**
+     * Paginates text that has been edited since the latest request, with the
+     * same parameters. If the latest request has been delivered and the text
+     * is held in memory, only the pages from the one before the edit are
+     * measured again, until they line up with the previous pages; otherwise
+     * the text is paginated in full. Results of edits are not cached. Must be
+     * called from the main thread.
+     *
+     * @param source the source of the edited text.
+     * @param start the offset at which the text was edited.
+     * @param before the number of characters replaced at {@code start}.
+     * @param after the number of characters that replaced them.
+     * @param listener notified on the main thread with the page offsets.
+     * @throws IllegalStateException if no text has been paginated yet.
+     */
+    public void paginateEdit(TextSource source, int start, int before, int after,
+            OnPageMeasureListener listener) {
+        if (mParams == null)
+            throw new IllegalStateException("No text has been paginated");
+
+        int[] result = mResult;
+        int[] pageLines = mResultPageLines;
+        int totalLines = mResultLines;
+        int linesPerPage = mResultLinesPerPage;
+        PageBreaker breaker = mResultBreaker;
+        if (mTask != null) {
+            final Task task = mTask;
+            breaker = task.mPageBreaker;
+            if (task.mOldOffsets == null) {
+                result = null;
+            } else {
+                // The edit of the unfinished task is combined with this one,
+                // on the result that task started from
+                result = task.mOldOffsets;
+                pageLines = task.mOldPageLines;
+                totalLines = task.mOldLines;
+                linesPerPage = task.mOldLinesPerPage;
+                final int end = Math.max(task.mEditEnd, start + before);
+                final int oldEnd = end - task.mEditDelta;
+                final int newEnd = end + after - before;
+                start = Math.min(task.mEditStart, start);
+                before = oldEnd - start;
+                after = newEnd - start;
+            }
+        }
+        // Pages broken another way can't be kept
+        if (result == null || source.asCharSequence() == null || breaker != mPageBreaker) {
+            paginate(source, mParams, listener);
+            return;
+        }
+
+        cancel();
+        cancelPrefetch();
+        mSource = source;
+        mResult = null;
+        mResultPageLines = null;
+        mPageIndex = null;
+        mResultTable = null;
+        mTask = new Task(source, mParams, listener);
+        mTask.setEdit(result, pageLines, totalLines, linesPerPage, start, before, after);
+        mDocument = mTask.mDocument;
+        EXECUTOR.execute(mTask);
+    }
+
+    /**
+     * Drops the first pages of the latest result, for text that has had the
+     * characters of those pages removed from its start. The rest of the pages
+     * are kept, moved to the new start of the text. Must be called from the
+     * main thread.
+     *
+     * @param source the source of the text without the dropped pages.
+     * @param count the number of pages dropped.
+     * @return the offsets of the pages that are kept.
+     * @throws IllegalStateException if the latest request has not been
+     *             delivered, or there are not more pages than that.
+     */
+    int[] dropPages(TextSource source, int count) {
+        if (mTask != null || mResult == null || count >= mResult.length)
+            throw new IllegalStateException("Unable to drop " + count + " pages");
+
+        final int cut = mResult[count];
+        final int cutLines = mResultPageLines[count];
+        final int[] offsets = new int[mResult.length - count];
+        final int[] pageLines = new int[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = mResult[count + i] - cut;
+            pageLines[i] = mResultPageLines[count + i] - cutLines;
+        }
+
+        cancelPrefetch();
+        mSource = source;
+        mDocument = null;
+        mResultTable = null;
+        mResult = offsets;
+        mResultPageLines = pageLines;
+        mResultLines -= cutLines;
+        mPageIndex = mPageIndex != null
+                ? PageIndex.of(offsets, mPageIndex.getEnd() - cut) : null;
+        return offsets;
+    }
+
+    /**
+     * Cancels the current request, if any. Its listener will not be called.
+     */
+    public void cancel() {
+        if (mTask != null) {
+            mTask.mCancelled = true;
+            mTask = null;
+        }
+        if (mAnchor != null) {
+            mAnchor.mCancelled = true;
+            mAnchor = null;
+        }
+        mDocument = null;
+    }
+
+    /**
+     * Paginates the text for other page sizes that are likely to be needed
+     * soon, such as the other orientation, and stores the results in the
+     * caches. The work starts once the main thread is idle and runs on a
+     * lowest priority thread, cancelling any earlier prefetch. Must be called
+     * from the main thread.
+     *
+     * @param text the text to paginate.
+     * @param params the parameters of each page size to paginate for.
+     */
+    public void prefetch(CharSequence text, List<PagingParams> params) {
+        cancelPrefetch();
+        if (mMemoryCache == null && mCache == null)
+            return;
+
+        final List<Task> tasks = new ArrayList<Task>(params.size());
+        for (PagingParams p : params) {
+            tasks.add(new Task(TextSource.of(text), p, null));
+        }
+        mPrefetch = new Prefetch(tasks);
+        Looper.myQueue().addIdleHandler(mPrefetch);
+    }
+
+    /**
+     * Cancels the current prefetch, if any.
+     */
+    public void cancelPrefetch() {
+        if (mPrefetch != null) {
+            mPrefetch.cancel();
+            mPrefetch = null;
+        }
+    }
+
+    /**
+     * @return the parameters of the latest request, or null.
+     */
+    public PagingParams getParams() {
+        return mParams;
+    }
+
+    /**
+     * @return true if a request has been started and has not yet been
+     *         delivered or cancelled.
+     */
+    public boolean isRunning() {
+        return mTask != null;
+    }
+
+    /**
+     * Sets how many pages are published at a time to an
+     * {@link OnPageBatchMeasureListener}. Applies to the next request.
+     *
+     * @param firstBatchSize number of pages in the first batch.
+     * @param batchSize number of pages in each following batch.
+     */
+    public void setBatchSizes(int firstBatchSize, int batchSize) {
+        mFirstBatchSize = Math.max(1, firstBatchSize);
+        mBatchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets whether long text held in memory is laid out on several threads at
+     * once. Enabled by default on devices with more than two cores. Prefetches
+     * are always laid out on a single thread. Applies to the next request.
+     *
+     * @param parallel true to lay out the text on several threads.
+     */
+    public void setParallelLayoutEnabled(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Sets whether the layouts of the text are kept once measured, so that
+     * pages can be drawn from them by a {@link PageView}. They take memory in
+     * proportion to the length of the text. Only the layouts of text held in
+     * memory, and not found in a cache, are kept. Those of a
+     * {@link MappedText} or {@link CompressedText} are not, since those keep
+     * long documents out of memory. While layouts are kept, the
+     * {@link AdvanceCache} is not used. Applies to the next request.
+     *
+     * @param retain true to keep the layouts.
+     */
+    public void setRetainLayouts(boolean retain) {
+        mRetainLayouts = retain;
+    }
+
+    /**
+     * @return the index of the pages of the latest request published or
+     *         delivered so far, which is set before the listener is notified,
+     *         or null.
+     */
+    public PageIndex getPageIndex() {
+        return mPageIndex;
+    }
+
+    /**
+     * @return the layouts kept for the latest request, which grow while it
+     *         runs, or null.
+     */
+    DocumentLayout getDocumentLayout() {
+        return mDocument;
+    }
+
+    /**
+     * @return the memory cache pagination results are stored in, or null.
+     */
+    public PaginationMemoryCache getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    /**
+     * @param cache the memory cache to store pagination results in, or null to
+     *            disable it. Applies to the next request.
+     */
+    public void setMemoryCache(PaginationMemoryCache cache) {
+        mMemoryCache = cache;
+    }
+
+    /**
+     * @return the cache pagination results are stored in, or null.
+     */
+    public PaginationCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * @param cache the cache to store pagination results in, or null to
+     *            disable caching. Applies to the next request.
+     */
+    public void setCache(PaginationCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * @return the cache of character advances lines are broken from, or null.
+     */
+    public AdvanceCache getAdvanceCache() {
+        return mAdvanceCache;
+    }
+
+    /**
+     * Sets a cache of character advances to break the lines of plain text
+     * from. It is only used while layouts are not retained, since lines broken
+     * from it can't be drawn, and before API 23, since later versions break
+     * lines by rules it doesn't reproduce. Applies to the next request.
+     *
+     * @param cache the cache of character advances, or null to lay out every
+     *            chunk.
+     * @see #setRetainLayouts(boolean)
+     */
+    public void setAdvanceCache(AdvanceCache cache) {
+        mAdvanceCache = cache;
+    }
+
+    /**
+     * @return the page breaker pages are broken with, or null.
+     */
+    public PageBreaker getPageBreaker() {
+        return mPageBreaker;
+    }
+
+    /**
+     * @param breaker the page breaker to score page breaks with, or null to
+     *            fill each page with as many lines as fit. Pages around an
+     *            anchor are always filled. Applies to the next request.
+     */
+    public void setPageBreaker(PageBreaker breaker) {
+        mPageBreaker = breaker;
+    }
+
+    /**
+     * @param layoutRes the layout resource identifier of the page views, which
+     *            is part of the {@link PaginationKey} of cached results.
+     */
+    public void setLayoutResource(int layoutRes) {
+        mLayoutRes = layoutRes;
+    }
+
+    /**
+     * Measures the first page by laying out only a prefix of the text, just
+     * long enough to fill a page as estimated from the font metrics. This is
+     * cheap enough to call on the UI thread regardless of the length of the
+     * text.
+     *
+     * @param text the text to paginate.
+     * @param params the page size and paint to lay the text out with.
+     * @return the character offset the first page ends at.
+     */
+    public static int measureFirstPage(CharSequence text, PagingParams params) {
+        final int length = text.length();
+        final TextPaint paint = params.paint;
+
+        // Estimate the number of characters that fill a page
+        final float lineHeight = paint.getFontMetricsInt(null) * params.spacingMult
+                + params.spacingAdd;
+        final int lines = (int) (params.height / Math.max(1f, lineHeight)) + 1;
+        final int sample = Math.min(length, FIRST_PAGE_SAMPLE_LENGTH);
+        final float charWidth = sample > 0 ? paint.measureText(text, 0, sample) / sample : 0f;
+        final int charsPerLine = (int) (params.width / Math.max(1f, charWidth)) + 1;
+        int prefix = Math.max(MIN_FIRST_PAGE_LENGTH, lines * charsPerLine * 3 / 2);
+
+        while (true) {
+            final int end = Math.min(length, prefix);
+            final Layout layout = new StaticLayout(text, 0, end, paint, params.width,
+                    Layout.Alignment.ALIGN_NORMAL, params.spacingMult, params.spacingAdd,
+                    params.includePad);
+            final int lineCount = layout.getLineCount();
+
+            int fit = 0;
+            while (fit < lineCount && layout.getLineBottom(fit) <= params.height) {
+                fit++;
+            }
+            fit = Math.max(1, fit);
+
+            if (end == length)
+                return fit < lineCount ? layout.getLineStart(fit) : length;
+
+            // The prefix may have cut the last word short, which can change
+            // where the last two lines break
+            if (fit < lineCount - 1)
+                return layout.getLineStart(fit);
+
+            if (DEBUG) Log.d(TAG, "measureFirstPage prefix of " + end + " is too short");
+            prefix *= 2;
+        }
+    }
+
+    /**
+     * @return true if the text is kept out of the heap, so that its layouts
+     *         are not retained.
+     */
+    static boolean isOffHeap(CharSequence text) {
+        return text instanceof MappedText || text instanceof CompressedText;
+    }
+
+    /**
+     * @param lines the lines of the whole text.
+     * @param height the height of each page.
+     * @param breaker the page breaker, or null to fill each page.
+     * @return the character offsets the pages start at.
+     */
+    static int[] getPageStarts(LineTable lines, int height, PageBreaker breaker) {
+        return lines.getLineStarts(getPageLines(lines, height, breaker));
+    }
+
+    /**
+     * @param lines the lines of the whole text.
+     * @param height the height of each page.
+     * @param breaker the page breaker, or null to fill each page.
+     * @return the lines the pages start at.
+     */
+    static int[] getPageLines(LineTable lines, int height, PageBreaker breaker) {
+        return breaker != null ? breaker.getPageLines(lines, height)
+                : lines.getPageLines(height);
+    }
+
+    /**
+     * @return the number of lines from the top of the table that fit in the
+     *         height, at least one.
+     */
+    static int fitLines(LineTable lines, int height) {
+        return lines.getLineCount() > 0 ? lines.findPageEnd(0, height) : 1;
+    }
+
+    private static boolean isSameText(TextSource source, TextSource other) {
+        if (source == other)
+            return true;
+        if (source == null || other == null)
+            return false;
+        final CharSequence text = source.asCharSequence();
+        return text != null && text == other.asCharSequence();
+    }
+
+    static ExecutorService newExecutor(final String name, final int priority,
+            int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        r.run();
+                    }
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Finds the end of the chunk of text starting at {@code start}: the first
+     * paragraph break after {@link #CHUNK_LENGTH} characters.
+     *
+     * @param complete false if the text continues past {@code length}.
+     * @return the end of the chunk, -1 if the paragraph runs past
+     *         {@link #MAX_CHUNK_LENGTH} characters, or
+     *         {@link #MORE_TEXT_NEEDED} if the end is past {@code length}.
+     */
+    static int findChunkEnd(CharSequence text, int start, int length, boolean complete) {
+        if (length - start <= CHUNK_LENGTH)
+            return complete ? length : MORE_TEXT_NEEDED;
+
+        final int max = Math.min(length, start + MAX_CHUNK_LENGTH);
+        final int end = TextUtils.indexOf(text, '\n', start + CHUNK_LENGTH, max);
+        if (end >= 0)
+            return end + 1;
+
+        if (max == length)
+            return complete ? length : MORE_TEXT_NEEDED;
+        return -1;
+    }
+
+    /**
+     * Finds the end of the segment of text starting at {@code start}: the
+     * first paragraph break after {@link #SEGMENT_LENGTH} characters, or the
+     * end of the text.
+     */
+    static int findSegmentEnd(CharSequence text, int start, int length) {
+        if (length - start <= SEGMENT_LENGTH)
+            return length;
+        final int end = TextUtils.indexOf(text, '\n', start + SEGMENT_LENGTH, length);
+        return end >= 0 ? end + 1 : length;
+    }
+
+    /**
+     * Creates the layout of a chunk of text.
+     */
+    static Layout newLayout(CharSequence text, int start, int end, TextPaint paint,
+            PagingParams params) {
+        return new StaticLayout(text, start, end, paint, params.width,
+                Layout.Alignment.ALIGN_NORMAL, params.spacingMult, params.spacingAdd,
+                params.includePad);
+    }
+
+    /**
+     * Breaks the lines of a chunk of text from cached advances if possible, or
+     * else lays it out.
+     *
+     * @param breaker the line breaker to try first, or null.
+     */
+    static LineTable.Lines newLines(CharSequence text, int start, int end, TextPaint paint,
+            PagingParams params, CachedLineBreaker breaker) {
+        if (breaker != null) {
+            final LineTable.Lines lines = breaker.breakLines(text, start, end);
+            if (lines != null)
+                return lines;
+        }
+        return LineTable.of(newLayout(text, start, end, paint, params));
+    }
+
+    /**
+     * Lays out the chunks of a segment of the text, on a thread of the layout
+     * pool. A segment starts and ends at paragraph breaks, so its chunks are
+     * split exactly as the text would be if laid out in order.
+     */
+    private static class Segment implements Callable<Segment> {
+
+        private final Task mTask;
+        private final CharSequence mText;
+        private final int mStart;
+        private final int mEnd;
+
+        final ArrayList<LineTable.Lines> chunks = new ArrayList<LineTable.Lines>();
+        int[] lineCounts = new int[8];
+
+        Segment(Task task, CharSequence text, int start, int end) {
+            mTask = task;
+            mText = text;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public Segment call() {
+            // Layouts measure with their paint, so each thread has its own
+            final TextPaint paint = new TextPaint(mTask.mParams.paint);
+            final CachedLineBreaker breaker = mTask.newBreaker(paint);
+            int start = mStart;
+            while (start < mEnd && !mTask.mCancelled) {
+                int end = findChunkEnd(mText, start, mEnd, true);
+                final boolean split = end < 0;
+                if (split)
+                    end = start + MAX_CHUNK_LENGTH;
+
+                final LineTable.Lines lines = newLines(mText, start, end, paint, mTask.mParams,
+                        breaker);
+                int lineCount = lines.getLineCount();
+                if (split && lineCount > 1) {
+                    lineCount--;
+                    end = lines.getLineStart(lineCount);
+                }
+
+                if (chunks.size() == lineCounts.length)
+                    lineCounts = Arrays.copyOf(lineCounts, lineCounts.length * 2);
+                lineCounts[chunks.size()] = lineCount;
+                chunks.add(lines);
+                start = end;
+            }
+            return this;
+        }
+    }
+
+    private class Task implements Runnable, TextSource.OnChunkListener {
+
+        private final TextSource mSource;
+        /** The text, if it is held in memory. */
+        private final CharSequence mText;
+        final PagingParams mParams;
+        final OnPageMeasureListener mListener;
+        private final boolean mParallel;
+        final int mFirstBatchSize;
+        private final int mBatchSize;
+        private final PaginationMemoryCache mMemoryCache;
+        private final PaginationCache mCache;
+        private final AdvanceCache mAdvanceCache;
+        final PageBreaker mPageBreaker;
+        private final int mLayoutRes;
+
+        private final LineTable mLines = new LineTable();
+        /** The layouts kept of each chunk, or null. */
+        DocumentLayout mDocument;
+        private int[] mOffsets = new int[64];
+        /** The line each page starts at, counted from the start of the text. */
+        private int[] mPageLines = new int[64];
+        /** The same offsets, to publish without copying. */
+        private final PageIndex.Builder mIndex = new PageIndex.Builder();
+        private int mPageCount;
+        private int mPublishedCount;
+        /** The number of lines of the first page. */
+        private int mLinesPerPage;
+        /** The line of the table the last page cut starts at, or -1. */
+        private int mPageLine = -1;
+        /** The page the line table starts at. */
+        private int mBasePage;
+        /** The number of lines before the page the line table starts at. */
+        private int mBaseLines;
+
+        /** The previous pages of edited text, or null. */
+        int[] mOldOffsets;
+        int[] mOldPageLines;
+        int mOldLines;
+        int mOldLinesPerPage;
+        int mEditStart;
+        int mEditEnd;
+        int mEditDelta;
+        private boolean mAligned;
+
+        /** Breaks lines from cached advances, or null. */
+        private CachedLineBreaker mBreaker;
+
+        /** Text scanned but not yet laid out, and its offset in the source. */
+        private StringBuilder mPending;
+        private int mPendingStart;
+
+        /** The digest of the text, if known before the task runs. */
+        private String mDigest;
+        /** Whether the result is delivered without measuring any text. */
+        boolean mImmediate;
+        /** The lines of the previous result that the pages are regrouped from. */
+        private LineTable mRegrouped;
+
+        volatile boolean mCancelled;
+
+        Task(TextSource source, PagingParams params, OnPageMeasureListener listener) {
+            mSource = source;
+            mText = source.asCharSequence();
+            mParams = params;
+            mListener = listener;
+            mFirstBatchSize = Paginator.this.mFirstBatchSize;
+            mBatchSize = Paginator.this.mBatchSize;
+            mMemoryCache = Paginator.this.mMemoryCache;
+            mCache = Paginator.this.mCache;
+            mAdvanceCache = Paginator.this.mAdvanceCache;
+            mPageBreaker = Paginator.this.mPageBreaker;
+            mLayoutRes = Paginator.this.mLayoutRes;
+            mParallel = Paginator.this.mParallel;
+            // Layouts of scanned text are over a buffer that is reused, and
+            // those of text kept out of the heap would undo the saving
+            mDocument = mRetainLayouts && mText != null && listener != null
+                    && !isOffHeap(mText) ? new DocumentLayout(mLines) : null;
+            mDigest = mText != null && mText == mDigestedText ? mTextDigest : null;
+        }
+
+        /**
+         * Sets up the task to lay out edited text from the page before the
+         * edit, keeping the previous pages before it.
+         */
+        void setEdit(int[] offsets, int[] pageLines, int totalLines, int linesPerPage,
+                int start, int before, int after) {
+            final int length = mText.length();
+            int page = Arrays.binarySearch(offsets, start);
+            if (page < 0)
+                page = -page - 2;
+            // The edit may let the end of the line before it break differently
+            page = Math.max(0, Math.min(page - 1, offsets.length - 1));
+            while (page > 0 && offsets[page] >= length) {
+                page--;
+            }
+
+            mOldOffsets = offsets;
+            mOldPageLines = pageLines;
+            mOldLines = totalLines;
+            mOldLinesPerPage = linesPerPage;
+            mEditStart = start;
+            mEditEnd = start + after;
+            mEditDelta = after - before;
+            mPublishedCount = offsets.length;
+            if (page > 0) {
+                // The layouts of the kept pages are not kept
+                mDocument = null;
+                mBasePage = page;
+                mBaseLines = pageLines[page];
+                mPageCount = page;
+                mLinesPerPage = linesPerPage;
+                ensureCapacity(page);
+                System.arraycopy(offsets, 0, mOffsets, 0, page);
+                System.arraycopy(pageLines, 0, mPageLines, 0, page);
+                for (int i = 0; i < page; i++) {
+                    mIndex.append(offsets[i]);
+                }
+            }
+        }
+
+        /**
+         * @param paint the paint the calling thread measures with.
+         * @return a line breaker using the advance cache, or null if lines
+         *         have to be laid out, such as when layouts are kept or the
+         *         breaker doesn't match StaticLayout on this platform.
+         */
+        CachedLineBreaker newBreaker(TextPaint paint) {
+            return mAdvanceCache != null && mDocument == null && CachedLineBreaker.isSupported()
+                    ? new CachedLineBreaker(paint, mParams, mAdvanceCache) : null;
+        }
+
+        /**
+         * Delivers the result straight from the memory cache if the text is
+         * the one the paginator last digested, so that nothing has to be read
+         * on the calling thread to look it up.
+         *
+         * @return true if the result was found.
+         */
+        boolean deliverFromMemory() {
+            if (mMemoryCache == null || mDigest == null)
+                return false;
+
+            final PaginationCache.Entry entry = mMemoryCache.get(new PaginationKey(mDigest,
+                    mParams, mLayoutRes, mPageBreaker));
+            if (entry == null)
+                return false;
+
+            mImmediate = true;
+            deliver(entry.toArray(), entry.toLineArray(), entry.totalLines, entry.linesPerPage);
+            return true;
+        }
+
+        /**
+         * Sets up the task to regroup the lines of the previous result into
+         * pages, for text laid out with the same width and style but another
+         * height.
+         */
+        void setRegrouped(LineTable lines) {
+            mImmediate = true;
+            mRegrouped = lines;
+        }
+
+        /**
+         * Delivers pages regrouped from the lines of the previous result.
+         */
+        private void deliverRegrouped(LineTable lines) {
+            final long startTime = System.currentTimeMillis();
+            mLinesPerPage = fitLines(lines, mParams.height);
+            final int[] pageLines = getPageLines(lines, mParams.height, mPageBreaker);
+            final int[] offsets = lines.getLineStarts(pageLines);
+            if (DEBUG) Log.d(TAG, "deliverRegrouped " + offsets.length + " pages in " + (System.currentTimeMillis() - startTime) + "ms");
+            deliver(offsets, pageLines, lines.getLineCount(), mLinesPerPage);
+        }
+
+        @Override
+        public void run() {
+            if (mRegrouped != null) {
+                deliverRegrouped(mRegrouped);
+                return;
+            }
+
+            final long startTime = System.currentTimeMillis();
+
+            PaginationKey key = null;
+            if (mText != null && mOldOffsets == null && (mMemoryCache != null || mCache != null)) {
+                if (mDigest == null)
+                    mDigest = mMemoryCache != null ? mMemoryCache.digest(mText)
+                            : PaginationKey.digest(mText);
+                // Text with spans that can't be digested is not cached
+                if (mDigest != null)
+                    key = new PaginationKey(mDigest, mParams, mLayoutRes, mPageBreaker);
+            }
+            if (key != null) {
+                PaginationCache.Entry entry = mMemoryCache != null ? mMemoryCache.get(key) : null;
+                if (entry == null && mCache != null) {
+                    entry = mCache.get(key);
+                    if (entry != null && mMemoryCache != null)
+                        mMemoryCache.put(key, entry.toArray(), entry.toLineArray(),
+                                entry.totalLines, entry.linesPerPage);
+                }
+
+                if (entry != null) {
+                    if (DEBUG) Log.d(TAG, "run cache hit in " + (System.currentTimeMillis() - startTime) + "ms");
+                    deliver(entry.toArray(), entry.toLineArray(), entry.totalLines,
+                            entry.linesPerPage);
+                    return;
+                }
+            }
+
+            try {
+                if (mOldOffsets != null) {
+                    layoutChunks(mText, 0, mOldOffsets[mBasePage], true);
+                } else if (mText != null && mParallel && mListener != null
+                        && findSegmentEnd(mText, 0, mText.length()) < mText.length()) {
+                    layoutSegments(mText);
+                } else if (mText != null) {
+                    layoutChunks(mText, 0, 0, true);
+                } else {
+                    mPending = new StringBuilder();
+                    if (!mSource.scan(this))
+                        return;
+                    layoutChunks(mPending, mPendingStart, 0, true);
+                    mPending = null;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read the text", e);
+                return;
+            }
+            if (mCancelled)
+                return;
+
+            final int totalLines;
+            if (mAligned) {
+                // The rest of the pages are the previous ones, moved by the edit
+                // and by the lines it added or removed before the aligned page
+                final int aligned = mPageCount - 1;
+                final int lineDelta = mPageLines[aligned] - mOldPageLines[aligned];
+                final int count = mOldOffsets.length;
+                ensureCapacity(count);
+                for (int i = mPageCount; i < count; i++) {
+                    mOffsets[i] = mOldOffsets[i] + mEditDelta;
+                    mPageLines[i] = mOldPageLines[i] + lineDelta;
+                    mIndex.append(mOffsets[i]);
+                }
+                mPageCount = count;
+                totalLines = mOldLines + lineDelta;
+            } else {
+                cutPages(true);
+                totalLines = mBaseLines + mLines.getLineCount();
+            }
+
+            if (DEBUG) Log.d(TAG, "run " + mPageCount + " pages in " + (System.currentTimeMillis() - startTime) + "ms" + (mOldOffsets != null ? ", from page " + mBasePage + (mAligned ? ", aligned" : "") : ""));
+
+            final int[] offsets = Arrays.copyOf(mOffsets, mPageCount);
+            final int[] pageLines = Arrays.copyOf(mPageLines, mPageCount);
+            if (key != null && !mCancelled) {
+                if (mMemoryCache != null)
+                    mMemoryCache.put(key, offsets, pageLines, totalLines, mLinesPerPage);
+                if (mCache != null)
+                    mCache.put(key, offsets, pageLines, totalLines, mLinesPerPage);
+            }
+
+            deliver(offsets, pageLines, totalLines, mLinesPerPage);
+        }
+
+        @Override
+        public boolean onChunk(CharSequence chunk, int start) {
+            if (mCancelled)
+                return false;
+
+            mPending.append(chunk);
+            final int consumed = layoutChunks(mPending, mPendingStart, 0, false);
+            mPending.delete(0, consumed);
+            mPendingStart += consumed;
+            return !mCancelled;
+        }
+
+        /**
+         * Lays out the text in chunks split at paragraph breaks, cutting and
+         * publishing pages as it goes. Chunks of text held in memory don't
+         * cross the ends of the segments {@link #layoutSegments(CharSequence)}
+         * would split it into, so that a paragraph too long for one chunk is
+         * split at the same points whether or not the text is laid out in
+         * parallel.
+         *
+         * @param text the text to lay out.
+         * @param offset the offset of the text in the source.
+         * @param start the position in the text to start at, at the start of a
+         *            line.
+         * @param complete false if the text continues past its end, in which
+         *            case the last chunk is left until there is more.
+         * @return the position in the text laid out up to.
+         */
+        private int layoutChunks(CharSequence text, int offset, int start, boolean complete) {
+            final int length = text.length();
+            final boolean segmented = text == mText;
+            int segmentEnd = segmented ? findSegmentEnd(text, start, length) : length;
+            while (start < length || (complete && mLines.getLineCount() == 0)) {
+                if (mCancelled || mAligned)
+                    return start;
+
+                if (segmented && start >= segmentEnd)
+                    segmentEnd = findSegmentEnd(text, start, length);
+                int end = findChunkEnd(text, start, segmentEnd, complete || segmentEnd < length);
+                if (end == MORE_TEXT_NEEDED)
+                    break;
+                final boolean split = end < 0;
+                if (split)
+                    end = start + MAX_CHUNK_LENGTH;
+
+                if (mBreaker == null)
+                    mBreaker = newBreaker(mParams.paint);
+                final LineTable.Lines lines = newLines(text, start, end, mParams.paint, mParams,
+                        mBreaker);
+
+                int lineCount = lines.getLineCount();
+                if (split && lineCount > 1) {
+                    // The last line may continue past the chunk, so lay it out
+                    // again as the start of the next one
+                    lineCount--;
+                    end = lines.getLineStart(lineCount);
+                }
+
+                appendChunk(lines, lineCount, offset, complete && end >= length);
+                start = end;
+            }
+            return start;
+        }
+
+        /**
+         * Lays out the text in segments on the layout pool, and appends their
+         * chunks in order as each segment is done.
+         *
+         * @param text the whole text.
+         */
+        private void layoutSegments(CharSequence text) {
+            final int length = text.length();
+            final ArrayList<Future<Segment>> futures = new ArrayList<Future<Segment>>();
+            for (int start = 0; start < length;) {
+                final int end = findSegmentEnd(text, start, length);
+                futures.add(LAYOUT_EXECUTOR.submit(new Segment(this, text, start, end)));
+                start = end;
+            }
+            if (DEBUG) Log.d(TAG, "layoutSegments " + futures.size() + " segments on " + LAYOUT_THREADS + " threads");
+
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    final Segment segment = futures.get(i).get();
+                    if (mCancelled)
+                        return;
+
+                    final int count = segment.chunks.size();
+                    for (int j = 0; j < count; j++) {
+                        final boolean last = i == futures.size() - 1 && j == count - 1;
+                        appendChunk(segment.chunks.get(j), segment.lineCounts[j], 0, last);
+                    }
+                }
+            } catch (InterruptedException e) {
+                mCancelled = true;
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                mCancelled = true;
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        /**
+         * Appends the lines of a chunk, cutting and publishing pages.
+         */
+        private void appendChunk(LineTable.Lines lines, int lineCount, int offset,
+                boolean last) {
+            final boolean first = mLines.getLineCount() == 0 && mBasePage == 0;
+            // Lines are only broken without a layout if layouts aren't kept
+            if (mDocument != null)
+                mDocument.append(lines.getLayout(), lineCount, offset, first, last);
+            else
+                mLines.append(lines, lineCount, offset, first, last);
+            cutPages(last);
+
+            if (!last && !mAligned && shouldPublish())
+                publish();
+        }
+
+        private void deliver(final int[] offsets, final int[] pageLines, final int totalLines,
+                final int linesPerPage) {
+            if (mListener == null)
+                return;
+
+            // Results found in a cache were not appended to the index
+            final int length = mText != null ? mText.length() : mSource.length();
+            final int end = Math.max(length, offsets.length > 0 ? offsets[offsets.length - 1] : 0);
+            final PageIndex index = offsets.length == mIndex.getPageCount() ? mIndex.build(end)
+                    : PageIndex.of(offsets, end);
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled)
+                        return;
+                    if (mTask == Task.this) {
+                        mTask = null;
+                        mAnchor = null;
+                        mResult = offsets;
+                        mResultPageLines = pageLines;
+                        mResultLines = totalLines;
+                        mResultLinesPerPage = linesPerPage;
+                        mPageIndex = index;
+                        mResultTable = getCompleteLines();
+                        mResultBreaker = mPageBreaker;
+                        if (mDigest != null && PaginationMemoryCache.isImmutable(mText)) {
+                            mDigestedText = mText;
+                            mTextDigest = mDigest;
+                        }
+                    }
+                    if (mListener != null)
+                        mListener.onPageMeasure(offsets, totalLines, linesPerPage);
+                }
+            });
+        }
+
+        /**
+         * @return the lines of the whole text, or null if only some were
+         *         measured.
+         */
+        private LineTable getCompleteLines() {
+            if (mRegrouped != null)
+                return mRegrouped;
+            return mBasePage == 0 && !mAligned && mLines.getLineCount() > 0 ? mLines : null;
+        }
+
+        /**
+         * Starts a new page after as many lines as fit in the height, found
+         * from the line tops once the lines below show where the page ends,
+         * or where the {@link PageBreaker} scores best once the lines of a few
+         * more pages are known. Edited text stops at the first page after the
+         * edit that starts where it did before, since the pages after it are
+         * the same.
+         */
+        private void cutPages(boolean last) {
+            final LineTable lines = mLines;
+            final int lineCount = lines.getLineCount();
+            final int height = mParams.height;
+
+            if (mLinesPerPage == 0) {
+                // Wait until there are enough lines to fill the first page
+                if (!last && lines.getBottom() <= height)
+                    return;
+
+                mLinesPerPage = fitLines(lines, height);
+            }
+
+            if (mPageLine < 0) {
+                if (lineCount == 0)
+                    return;
+                mPageLine = 0;
+                if (addPage(lines.getLineStart(0), 0))
+                    return;
+            }
+
+            if (mPageBreaker != null) {
+                for (int next : mPageBreaker.findBreaks(lines, mPageLine, height, last)) {
+                    mPageLine = next;
+                    if (addPage(lines.getLineStart(next), next))
+                        return;
+                }
+                return;
+            }
+
+            while (last || lines.getBottom() - lines.getLineTop(mPageLine) > height) {
+                final int next = lines.findPageEnd(mPageLine, height);
+                if (next >= lineCount)
+                    return;
+                mPageLine = next;
+                if (addPage(lines.getLineStart(next), next))
+                    return;
+            }
+        }
+
+        /**
+         * @param offset the character offset the page starts at.
+         * @param line the line of the table the page starts at.
+         * @return true if the page lines up with the previous pages.
+         */
+        private boolean addPage(int offset, int line) {
+            ensureCapacity(mPageCount + 1);
+            mPageLines[mPageCount] = mBaseLines + line;
+            mOffsets[mPageCount++] = offset;
+            mIndex.append(offset);
+            mAligned = isAligned(mPageCount - 1, offset);
+            return mAligned;
+        }
+
+        private boolean isAligned(int page, int offset) {
+            return mOldOffsets != null && page < mOldOffsets.length && offset >= mEditEnd
+                    && mLinesPerPage == mOldLinesPerPage
+                    && mOldOffsets[page] + mEditDelta == offset;
+        }
+
+        private void ensureCapacity(int count) {
+            if (count > mOffsets.length) {
+                final int capacity = Math.max(count, mOffsets.length * 2);
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mPageLines = Arrays.copyOf(mPageLines, capacity);
+            }
+        }
+
+        private boolean shouldPublish() {
+            // The last page cut may still grow, so it doesn't count
+            final int complete = mPageCount - 1;
+            if (mPublishedCount == 0)
+                return complete >= mFirstBatchSize;
+            return complete >= mPublishedCount + mBatchSize;
+        }
+
+        private void publish() {
+            if (!(mListener instanceof OnPageBatchMeasureListener))
+                return;
+
+            mPublishedCount = mPageCount - 1;
+            final int[] offsets = Arrays.copyOf(mOffsets, mPublishedCount);
+            final int measuredEnd = mOffsets[mPublishedCount];
+            final PageIndex index = mIndex.build(mPublishedCount, measuredEnd);
+            final int estimatedCount = Math.max(mPublishedCount,
+                    (int) ((long) mSource.getEstimatedLength() * mPublishedCount / measuredEnd));
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled)
+                        return;
+                    if (mTask == Task.this)
+                        mPageIndex = index;
+                    ((OnPageBatchMeasureListener) mListener).onPageBatchMeasure(offsets,
+                            measuredEnd, estimatedCount);
+                }
+            });
+        }
+    }
+
+    /**
+     * Lays out the text around an anchor, from a paragraph break a chunk
+     * before it to a batch of pages after it, on a thread of the layout pool.
+     * The pages are cut forwards and backwards from the line of the anchor.
+     */
+    private class Anchor implements Runnable {
+
+        private final Task mTask;
+        private final CharSequence mText;
+        private final int mOffset;
+
+        volatile boolean mCancelled;
+
+        Anchor(Task task, CharSequence text, int anchor) {
+            mTask = task;
+            mText = text;
+            mOffset = anchor;
+        }
+
+        @Override
+        public void run() {
+            final long startTime = System.currentTimeMillis();
+            final PagingParams params = mTask.mParams;
+            final TextPaint paint = new TextPaint(params.paint);
+            final int length = mText.length();
+
+            // Estimate the lines per page from the first page, to know how
+            // far to lay out
+            final LineTable top = new LineTable();
+            int end = findChunkEnd(mText, 0, length, true);
+            if (end < 0)
+                end = MAX_CHUNK_LENGTH;
+            final Layout first = newLayout(mText, 0, end, paint, params);
+            top.append(first, first.getLineCount(), 0, true, end >= length);
+            final int linesPerPage = fitLines(top, params.height);
+
+            // Lines break as in the full layout from a paragraph break. A
+            // paragraph longer than a chunk is started partway, where its
+            // lines may break differently
+            final int min = Math.max(0, mOffset - CHUNK_LENGTH - MAX_CHUNK_LENGTH);
+            final int from = Math.max(0, mOffset - CHUNK_LENGTH);
+            final int start = from == 0 ? 0
+                    : Math.max(min, TextUtils.lastIndexOf(mText, '\n', min, from - 1) + 1);
+
+            final LineTable lines = new LineTable();
+            final int minLines = mTask.mFirstBatchSize * linesPerPage;
+            int position = start;
+            while (position < length && !mCancelled) {
+                end = findChunkEnd(mText, position, length, true);
+                final boolean split = end < 0;
+                if (split)
+                    end = position + MAX_CHUNK_LENGTH;
+
+                final Layout layout = newLayout(mText, position, end, paint, params);
+                int lineCount = layout.getLineCount();
+                if (split && lineCount > 1) {
+                    lineCount--;
+                    end = layout.getLineStart(lineCount);
+                }
+                lines.append(layout, lineCount, 0, position == 0, end >= length);
+                position = end;
+
+                if (position > mOffset
+                        && lines.getLineCount() - lines.getLineForOffset(mOffset) > minLines)
+                    break;
+            }
+            if (mCancelled)
+                return;
+
+            // Pages are exact from the start of the text. Otherwise the line
+            // of the anchor starts a page, and the pages before it are found
+            // backwards, dropping any that would start before the window
+            final boolean complete = position >= length;
+            final int lineCount = lines.getLineCount();
+            final int height = params.height;
+            final int anchorLine = lines.getLineForOffset(mOffset);
+            final ArrayList<Integer> starts = new ArrayList<Integer>();
+            if (start > 0) {
+                for (int line = anchorLine; line > 0;) {
+                    line = lines.findPageStart(line, height);
+                    if (line == 0)
+                        break;
+                    starts.add(0, line);
+                }
+            }
+            int page = -1;
+            int line = start == 0 ? 0 : anchorLine;
+            int pageEnd = length;
+            while (line < lineCount) {
+                // The last page is only complete at the end of the text
+                final int next = lines.findPageEnd(line, height);
+                if (next >= lineCount && !complete) {
+                    pageEnd = lines.getLineStart(line);
+                    break;
+                }
+                if (line <= anchorLine)
+                    page = starts.size();
+                starts.add(line);
+                line = next;
+            }
+            final int pageCount = starts.size();
+            final int anchorPage = page;
+            final int measuredEnd = pageEnd;
+            if (anchorPage < 0 || (anchorPage == pageCount - 1 && measuredEnd <= mOffset))
+                return;
+
+            final int[] offsets = new int[pageCount];
+            for (int i = 0; i < pageCount; i++) {
+                offsets[i] = lines.getLineStart(starts.get(i));
+            }
+
+            // Estimate the pages either side from the characters per page
+            final float charsPerPage = Math.max(1f,
+                    (float) (measuredEnd - offsets[0]) / pageCount);
+            final int estimatedFirstPage = offsets[0] == 0 ? 0
+                    : Math.max(1, Math.round(offsets[0] / charsPerPage));
+            final int estimatedCount = estimatedFirstPage + pageCount + (complete ? 0
+                    : Math.max(1, Math.round((length - measuredEnd) / charsPerPage)));
+
+            if (DEBUG) Log.d(TAG, "Anchor " + pageCount + " pages around " + mOffset + " in " + (System.currentTimeMillis() - startTime) + "ms");
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled || Paginator.this.mTask != mTask)
+                        return;
+                    mAnchor = null;
+                    ((OnAnchoredPageMeasureListener) mTask.mListener).onAnchoredPageMeasure(
+                            offsets, measuredEnd, anchorPage, estimatedFirstPage,
+                            estimatedCount);
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs a series of tasks, whose results only go to the caches, once the
+     * main thread is idle.
+     */
+    private static class Prefetch implements Runnable, MessageQueue.IdleHandler {
+
+        private final List<Task> mTasks;
+        private volatile boolean mCancelled;
+
+        Prefetch(List<Task> tasks) {
+            mTasks = tasks;
+        }
+
+        @Override
+        public boolean queueIdle() {
+            if (!mCancelled)
+                PREFETCH_EXECUTOR.execute(this);
+            return false;
+        }
+
+        @Override
+        public void run() {
+            for (Task task : mTasks) {
+                if (mCancelled)
+                    return;
+                task.run();
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            for (Task task : mTasks) {
+                task.mCancelled = true;
+            }
+            Looper.myQueue().removeIdleHandler(this);
+        }
+    }
+}
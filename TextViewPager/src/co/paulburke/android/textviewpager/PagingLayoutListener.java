@@ -23,11 +23,23 @@ import android.widget.TextView;
 
 /**
  * An {@link OnGlobalLayoutListener} that determines how many "pages" the
- * current text should be split into by calculating the maximum number of lines
- * that the view can display without clipping.<br>
+ * current text should be split into by breaking each page after the last line
+ * that the view can display without clipping, so lines of different heights
+ * are never cut off.<br>
  * <br>
  * Set an {@link OnPageMeasureListener} to be notified of the character offsets
- * calculated for each page.
+ * calculated for each page.<br>
+ * <br>
+ * The full text is laid out on the UI thread, so this is only suitable for
+ * short text. {@link AsyncPagingLayoutListener} measures on a background
+ * thread instead.<br>
+ * <br>
+ * The lines of the full text are kept once measured, so when only the height
+ * of the view changes, the lines are regrouped into pages without laying out
+ * the text again.<br>
+ * <br>
+ * Set a {@link PageBreaker} to choose where pages break by scoring them,
+ * rather than filling each page.
  *
  * @author paulburke (ipaulpro)
  */
@@ -45,14 +57,20 @@ public class PagingLayoutListener implements OnGlobalLayoutListener {
          *
          * @param offsets character offsets for the current text.
          * @param totalLines total number of lines in the layout.
-         * @param linesPerPage number of lines that fit on this view without
-         *            clipping.
+         * @param linesPerPage number of lines that fit on the first page
+         *            without clipping.
          */
         public void onPageMeasure(int[] offsets, int totalLines, int linesPerPage);
     }
 
     private TextView mView;
     private OnPageMeasureListener mListener;
+    private PageBreaker mPageBreaker;
+
+    /** The full text, its lines and the parameters they were measured with. */
+    private CharSequence mText;
+    private LineTable mLines;
+    private PagingParams mParams;
 
     /**
      * Creates a new PreDrawListener for the given view.
@@ -66,40 +84,89 @@ public class PagingLayoutListener implements OnGlobalLayoutListener {
         mListener = listener;
     }
 
+    /**
+     * Sets how pages are broken, regrouping the lines already measured into
+     * pages if there are any.
+     *
+     * @param breaker the page breaker, or null to fill each page with as
+     *            many lines as fit.
+     */
+    public void setPageBreaker(PageBreaker breaker) {
+        mPageBreaker = breaker;
+        if (mLines != null)
+            regroup();
+    }
+
     @Override
     public void onGlobalLayout() {
+        if (mLines != null) {
+            final PagingParams params = PagingParams.fromTextView(mView);
+            if (params == null || params.equals(mParams))
+                return;
+            if (params.width == mParams.width && params.isSameStyle(mParams)) {
+                mParams = params;
+                regroup();
+                return;
+            }
+
+            // The view only holds the first page, so the full text has to be
+            // laid out again
+            mLines = null;
+            mView.setText(mText);
+            return;
+        }
+
         final Layout layout = mView.getLayout();
         if (layout != null) {
             final int height = mView.getHeight() - mView.getPaddingTop()
                     - mView.getPaddingBottom();
             final int lineCount = layout.getLineCount();
 
-            // Last visible line
-            int lastLine = layout.getLineForVertical(height);
-            // Bottom of the last visible line
-            int lastLineBottom = layout.getLineBottom(lastLine);
+            // Bottom of the last line
+            final int bottom = lineCount > 0 ? layout.getLineTop(lineCount) : 0;
 
             // Check if the layout is taller than the page
-            if (lineCount > 0 && lastLineBottom > height) {
-                // Determine the number of pages needed
-                int pagesCount = (int) Math.ceil(lineCount / (double) lastLine);
-                if (DEBUG) Log.d(TAG, "onPreDraw text is too tall! Should be "+pagesCount+" pages.");
-
-                // Determine offsets for each page
-                int[] offsets = new int[pagesCount];
-                for (int i = 0; i < pagesCount; i++) {
-                    offsets[i] = layout.getLineStart(i * lastLine);
-                    if (DEBUG) Log.d(TAG, "onPreDraw new page at " + i + ", starting char offset = " + offsets[i]);
-                }
+            if (lineCount > 0 && bottom > height) {
+                final LineTable lines = new LineTable();
+                lines.append(layout, lineCount, 0, true, true);
+
+                // Break each page after the last line that fits, which takes
+                // lines of mixed heights into account, or where it scores best
+                final int[] offsets = Paginator.getPageStarts(lines, height, mPageBreaker);
+                final int linesPerPage = Paginator.fitLines(lines, height);
+                if (DEBUG) Log.d(TAG, "onPreDraw text is too tall! Should be "+offsets.length+" pages.");
+
+                // Keep the lines to regroup them if only the height changes
+                mText = layout.getText();
+                mParams = PagingParams.fromTextView(mView);
+                if (mParams != null)
+                    mLines = lines;
 
                 // Clip the text in this view now
-                CharSequence text = layout.getText().subSequence(0, offsets[1]);
+                final int end = offsets.length > 1 ? offsets[1] : mText.length();
+                CharSequence text = SpannedWindow.window(layout.getText(), 0, end);
                 mView.setText(text);
 
                 if (mListener != null)
-                    mListener.onPageMeasure(offsets, lineCount, lastLine);
+                    mListener.onPageMeasure(offsets, lineCount, linesPerPage);
             }
         }
     }
 
+    /**
+     * Groups the kept lines into pages for the current height, and shows the
+     * first of them.
+     */
+    private void regroup() {
+        final int linesPerPage = Paginator.fitLines(mLines, mParams.height);
+        final int[] offsets = Paginator.getPageStarts(mLines, mParams.height, mPageBreaker);
+        if (DEBUG) Log.d(TAG, "regroup " + offsets.length + " pages of " + linesPerPage + " lines");
+
+        final int end = offsets.length > 1 ? offsets[1] : mText.length();
+        mView.setText(SpannedWindow.window(mText, 0, end));
+
+        if (mListener != null)
+            mListener.onPageMeasure(offsets, mLines.getLineCount(), linesPerPage);
+    }
+
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.text.TextPaint;
+import android.widget.TextView;
+
+/**
+ * Immutable snapshot of everything needed to lay out text for a page without
+ * touching the {@link TextView} it was taken from. Since the {@link TextPaint}
+ * is copied, instances are safe to hand to a background thread.
+ *
+ * @see Paginator
+ * @author paulburke (ipaulpro)
+ */
+public class PagingParams {
+
+    final TextPaint paint;
+    final int width;
+    final int height;
+    final float spacingMult;
+    final float spacingAdd;
+    final boolean includePad;
+    final int paddingLeft;
+    final int paddingTop;
+    final int paddingRight;
+    final int paddingBottom;
+
+    public PagingParams(TextPaint paint, int width, int height, float spacingMult,
+            float spacingAdd, boolean includePad) {
+        this(paint, width, height, spacingMult, spacingAdd, includePad, 0, 0, 0, 0);
+    }
+
+    public PagingParams(TextPaint paint, int width, int height, float spacingMult,
+            float spacingAdd, boolean includePad, int paddingLeft, int paddingTop,
+            int paddingRight, int paddingBottom) {
+        this.paint = new TextPaint(paint);
+        this.width = width;
+        this.height = height;
+        this.spacingMult = spacingMult;
+        this.spacingAdd = spacingAdd;
+        this.includePad = includePad;
+        this.paddingLeft = paddingLeft;
+        this.paddingTop = paddingTop;
+        this.paddingRight = paddingRight;
+        this.paddingBottom = paddingBottom;
+    }
+
+    /**
+     * Captures the text area and paint of a view that has already been laid
+     * out.
+     *
+     * @param view the view pages will be displayed in.
+     * @return the parameters, or null if the view has not been measured yet.
+     */
+    public static PagingParams fromTextView(TextView view) {
+        return fromTextView(view, view.getWidth(), view.getHeight());
+    }
+
+    /**
+     * Captures the text area and paint a view will have once it is laid out
+     * with the given size.
+     *
+     * @param view the view pages will be displayed in.
+     * @param viewWidth the width of the view.
+     * @param viewHeight the height of the view.
+     * @return the parameters, or null if the size is empty.
+     */
+    public static PagingParams fromTextView(TextView view, int viewWidth, int viewHeight) {
+        final int width = viewWidth - view.getCompoundPaddingLeft()
+                - view.getCompoundPaddingRight();
+        final int height = viewHeight - view.getPaddingTop() - view.getPaddingBottom();
+        if (width <= 0 || height <= 0)
+            return null;
+
+        final PagingParams params;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            params = fromTextViewJellyBean(view, width, height);
+        else
+            params = new PagingParams(view.getPaint(), width, height, 1f, 0f, true,
+                    view.getCompoundPaddingLeft(), view.getPaddingTop(),
+                    view.getCompoundPaddingRight(), view.getPaddingBottom());
+
+        // The view only sets the colors of its paint when it draws, so take
+        // them from the view for layouts that are drawn without it
+        params.paint.setColor(view.getCurrentTextColor());
+        if (view.getLinkTextColors() != null)
+            params.paint.linkColor = view.getLinkTextColors().getDefaultColor();
+        return params;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static PagingParams fromTextViewJellyBean(TextView view, int width, int height) {
+        return new PagingParams(view.getPaint(), width, height,
+                view.getLineSpacingMultiplier(), view.getLineSpacingExtra(),
+                view.getIncludeFontPadding(), view.getCompoundPaddingLeft(),
+                view.getPaddingTop(), view.getCompoundPaddingRight(), view.getPaddingBottom());
+    }
+
+    /**
+     * Creates parameters for the same view and paint, laid out with a
+     * different size.
+     *
+     * @param viewWidth the width of the view.
+     * @param viewHeight the height of the view.
+     * @return the parameters, or null if the size is empty.
+     */
+    public PagingParams withViewSize(int viewWidth, int viewHeight) {
+        final int width = viewWidth - paddingLeft - paddingRight;
+        final int height = viewHeight - paddingTop - paddingBottom;
+        if (width <= 0 || height <= 0)
+            return null;
+
+        return new PagingParams(paint, width, height, spacingMult, spacingAdd, includePad,
+                paddingLeft, paddingTop, paddingRight, paddingBottom);
+    }
+
+    /**
+     * @return the width available for each line of text.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height available for the lines of each page.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param other the parameters to compare with.
+     * @return true if text laid out with both parameters is styled and
+     *         padded the same, regardless of the page size.
+     */
+    public boolean isSameStyle(PagingParams other) {
+        return other != null
+                && spacingMult == other.spacingMult && spacingAdd == other.spacingAdd
+                && includePad == other.includePad
+                && paddingLeft == other.paddingLeft && paddingTop == other.paddingTop
+                && paddingRight == other.paddingRight && paddingBottom == other.paddingBottom
+                && paint.getTextSize() == other.paint.getTextSize()
+                && paint.getTextScaleX() == other.paint.getTextScaleX()
+                && paint.getFlags() == other.paint.getFlags()
+                && paint.getTypeface() == other.paint.getTypeface();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PagingParams))
+            return false;
+
+        final PagingParams other = (PagingParams) o;
+        return width == other.width && height == other.height && isSameStyle(other);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = width;
+        result = 31 * result + height;
+        result = 31 * result + Float.floatToIntBits(spacingMult);
+        result = 31 * result + Float.floatToIntBits(spacingAdd);
+        result = 31 * result + (includePad ? 1 : 0);
+        result = 31 * result + Float.floatToIntBits(paint.getTextSize());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "PagingParams{" + width + "x" + height + ", textSize=" + paint.getTextSize() + "}";
+    }
+}
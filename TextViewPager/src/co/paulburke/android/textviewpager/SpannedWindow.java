@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.text.GetChars;
+import android.text.Spanned;
+import android.text.TextUtils;
+
+/**
+ * A window onto part of a {@link Spanned} text, used for the text of a page
+ * instead of {@link CharSequence#subSequence(int, int)}, which copies the
+ * characters and every span of the document that overlaps the page. The
+ * window itself copies nothing: characters are read through to the text, and
+ * only the spans that overlap the window are looked up, when they are asked
+ * for, with their bounds clipped to the window.<br>
+ * <br>
+ * A {@link android.widget.TextView} still copies the window into a
+ * {@link android.text.SpannedString} when it is set as its text, so a page
+ * shown in one is copied once rather than twice. The window is not made
+ * {@link android.text.Spannable} to avoid that copy, since the view would
+ * then lay it out with a DynamicLayout and add its own spans to it. Pages
+ * drawn by a {@link PageView} are not copied at all.<br>
+ * <br>
+ * The window reflects later changes to the text, so it should only be made
+ * over text that doesn't change while the window is in use.
+ *
+ * @author paulburke (ipaulpro)
+ */
+class SpannedWindow implements Spanned, GetChars {
+
+    private final Spanned mText;
+    private final int mStart;
+    private final int mLength;
+
+    private SpannedWindow(Spanned text, int start, int end) {
+        mText = text;
+        mStart = start;
+        mLength = end - start;
+    }
+
+    /**
+     * Returns the text from {@code start} to {@code end}: a window if the text
+     * is {@link Spanned}, or its {@link CharSequence#subSequence(int, int)}
+     * otherwise.
+     *
+     * @param text the text.
+     * @param start the start of the window.
+     * @param end the end of the window.
+     * @return the text of the window.
+     */
+    static CharSequence window(CharSequence text, int start, int end) {
+        if (!(text instanceof Spanned))
+            return text.subSequence(start, end);
+
+        if (text instanceof SpannedWindow) {
+            // Don't stack windows
+            final SpannedWindow window = (SpannedWindow) text;
+            checkBounds(start, end, window.mLength);
+            return new SpannedWindow(window.mText, window.mStart + start, window.mStart + end);
+        }
+
+        checkBounds(start, end, text.length());
+        return new SpannedWindow((Spanned) text, start, end);
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength)
+            throw new IndexOutOfBoundsException("index = " + index + ", length = " + mLength);
+        return mText.charAt(mStart + index);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        checkBounds(start, end, mLength);
+        TextUtils.getChars(mText, mStart + start, mStart + end, dest, destoff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return window(this, start, end);
+    }
+
+    /**
+     * Spans that touch the edges of the window from outside are included, with
+     * empty bounds, as they would be in a copy made with
+     * {@link CharSequence#subSequence(int, int)}.
+     */
+    @Override
+    public <T> T[] getSpans(int start, int end, Class<T> type) {
+        start = Math.max(0, start);
+        end = Math.min(mLength, end);
+        return mText.getSpans(mStart + start, mStart + end, type);
+    }
+
+    @Override
+    public int getSpanStart(Object tag) {
+        final int start = mText.getSpanStart(tag);
+        if (start < 0)
+            return -1;
+        return Math.max(0, Math.min(mLength, start - mStart));
+    }
+
+    @Override
+    public int getSpanEnd(Object tag) {
+        final int end = mText.getSpanEnd(tag);
+        if (end < 0)
+            return -1;
+        return Math.max(0, Math.min(mLength, end - mStart));
+    }
+
+    @Override
+    public int getSpanFlags(Object tag) {
+        return mText.getSpanFlags(tag);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public int nextSpanTransition(int start, int limit, Class type) {
+        start = Math.max(0, start);
+        limit = Math.min(mLength, limit);
+        return mText.nextSpanTransition(mStart + start, mStart + limit, type) - mStart;
+    }
+
+    @Override
+    public String toString() {
+        final char[] chars = new char[mLength];
+        getChars(0, mLength, chars, 0);
+        return new String(chars);
+    }
+
+    private static void checkBounds(int start, int end, int length) {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("start = " + start + ", end = " + end
+                    + ", length = " + length);
+    }
+}
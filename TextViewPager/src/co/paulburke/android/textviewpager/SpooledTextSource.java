@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link TextSource} for a reader that can only be read once. As the text is
+ * scanned, each block is encoded as UTF-8 and appended to a temporary file,
+ * from which windows of the text are read back.
+ *
+ * @author paulburke (ipaulpro)
+ */
+class SpooledTextSource extends BlockTextSource {
+
+    private static final int BLOCK_LENGTH = 16 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Reader mReader;
+    private final File mDirectory;
+    /** Gives the length of the stream the reader decodes, or null. */
+    private StreamTextSource.StreamOpener mOpener;
+    private int mEstimatedLength = -1;
+    private File mFile;
+    /** Characters read but not yet added to a block. */
+    private String mCarry = "";
+
+    /**
+     * @param reader the reader of the text.
+     * @param directory the directory to create the temporary file in.
+     * @param opener gives the length of the stream the reader decodes, which
+     *            estimates the number of characters, or null.
+     */
+    SpooledTextSource(Reader reader, File directory, StreamTextSource.StreamOpener opener) {
+        super(UTF_8);
+        mReader = reader;
+        mDirectory = directory;
+        mOpener = opener;
+    }
+
+    @Override
+    public int getEstimatedLength() {
+        final int length = length();
+        return length >= 0 ? length : getStreamLength();
+    }
+
+    private synchronized int getStreamLength() {
+        if (mOpener != null) {
+            mEstimatedLength = (int) Math.min(mOpener.getLength(), Integer.MAX_VALUE);
+            mOpener = null;
+        }
+        return mEstimatedLength;
+    }
+
+    @Override
+    synchronized InputStream openBlockStream() throws IOException {
+        if (mFile == null)
+            throw new IOException("Source is closed");
+        return new FileInputStream(mFile);
+    }
+
+    @Override
+    boolean readBlocks(long byteStart, OnChunkListener listener) throws IOException {
+        final File file;
+        synchronized (this) {
+            if (mFile == null) {
+                mFile = File.createTempFile("text", ".tmp", mDirectory);
+                mFile.deleteOnExit();
+            }
+            file = mFile;
+        }
+
+        final char[] buffer = new char[BLOCK_LENGTH];
+        OutputStream out = null;
+        try {
+            // Continue where a cancelled scan stopped; the reader is still there
+            out = new FileOutputStream(file, true);
+
+            int pending = mCarry.length();
+            mCarry.getChars(0, pending, buffer, 0);
+            while (true) {
+                int length = pending;
+                while (length < BLOCK_LENGTH) {
+                    final int count = mReader.read(buffer, length, BLOCK_LENGTH - length);
+                    if (count < 0)
+                        break;
+                    length += count;
+                }
+                if (length == 0)
+                    return true;
+
+                final boolean end = length < BLOCK_LENGTH;
+                // Never end a block between the halves of a surrogate pair
+                final int split = !end && Character.isHighSurrogate(buffer[length - 1])
+                        ? length - 1 : length;
+
+                final String text = new String(buffer, 0, split);
+                final byte[] bytes = text.getBytes(UTF_8);
+                out.write(bytes);
+                out.flush();
+
+                pending = length - split;
+                mCarry = new String(buffer, split, pending);
+                if (!addBlock(text, bytes.length, listener))
+                    return false;
+                if (end) {
+                    closeQuietly(mReader);
+                    return true;
+                }
+
+                System.arraycopy(buffer, split, buffer, 0, pending);
+            }
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(mReader);
+        synchronized (this) {
+            if (mFile != null) {
+                mFile.delete();
+                mFile = null;
+            }
+        }
+    }
+}
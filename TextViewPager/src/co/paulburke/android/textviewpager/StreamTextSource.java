@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link TextSource} for a stream that can be opened again, such as an asset
+ * or a content URI, in UTF-8 or a single-byte character set. The stream is
+ * split into blocks at character boundaries, so windows of the text are read
+ * back by skipping to a block and decoding it, without copying the text
+ * anywhere.
+ *
+ * @author paulburke (ipaulpro)
+ */
+class StreamTextSource extends BlockTextSource {
+
+    private static final int BLOCK_SIZE = 32 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Opens the stream of the text. Neither method is called on the UI
+     * thread.
+     */
+    interface StreamOpener {
+        InputStream open() throws IOException;
+
+        /**
+         * @return the length of the stream in bytes, or -1 if unknown.
+         */
+        long getLength();
+    }
+
+    private final StreamOpener mOpener;
+    private final boolean mUtf8;
+    /** The length of the stream, once asked for. */
+    private Long mByteLength;
+
+    /**
+     * @param opener opens the stream of the text.
+     * @param charset the character set of the stream, for which
+     *            {@link #canReadBlocks(Charset)} must be true.
+     */
+    StreamTextSource(StreamOpener opener, Charset charset) {
+        super(charset);
+        mOpener = opener;
+        mUtf8 = UTF_8.equals(charset);
+    }
+
+    /**
+     * @param charset the character set of a stream.
+     * @return true if a block of the stream that starts and ends on character
+     *         boundaries can be decoded on its own.
+     */
+    static boolean canReadBlocks(Charset charset) {
+        if (UTF_8.equals(charset))
+            return true;
+        try {
+            return charset.newEncoder().maxBytesPerChar() == 1f;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int getEstimatedLength() {
+        final int length = length();
+        if (length >= 0)
+            return length;
+        // There is at most one character per byte
+        return (int) Math.min(getByteLength(), Integer.MAX_VALUE);
+    }
+
+    private synchronized long getByteLength() {
+        if (mByteLength == null)
+            mByteLength = mOpener.getLength();
+        return mByteLength;
+    }
+
+    @Override
+    InputStream openBlockStream() throws IOException {
+        return mOpener.open();
+    }
+
+    @Override
+    boolean readBlocks(long byteStart, OnChunkListener listener) throws IOException {
+        final byte[] buffer = new byte[BLOCK_SIZE];
+        InputStream in = null;
+        try {
+            in = mOpener.open();
+            skipFully(in, byteStart);
+
+            int pending = 0;
+            while (true) {
+                final int length = pending + readFully(in, buffer, pending, BLOCK_SIZE - pending);
+                if (length == 0)
+                    return true;
+
+                final boolean end = length < BLOCK_SIZE;
+                final int split = end || !mUtf8 ? length : findCharBoundary(buffer, length);
+                if (!addBlock(new String(buffer, 0, split, getCharset()), split, listener))
+                    return false;
+                if (end)
+                    return true;
+
+                // Carry the bytes of a split character into the next block
+                pending = length - split;
+                System.arraycopy(buffer, split, buffer, 0, pending);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return the offset of the last UTF-8 lead byte in the buffer, so that no
+     *         character is split. Malformed input is split anywhere.
+     */
+    private static int findCharBoundary(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0 && i >= length - 4; i--) {
+            if ((buffer[i] & 0xC0) != 0x80)
+                return i > 0 ? i : length;
+        }
+        return length;
+    }
+
+    /**
+     * A reader that opens its stream the first time it is read.
+     */
+    static class LazyReader extends Reader {
+
+        private final StreamOpener mOpener;
+        private final Charset mCharset;
+        private Reader mReader;
+
+        LazyReader(StreamOpener opener, Charset charset) {
+            mOpener = opener;
+            mCharset = charset;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) throws IOException {
+            if (mReader == null)
+                mReader = new InputStreamReader(mOpener.open(), mCharset);
+            return mReader.read(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mReader != null)
+                mReader.close();
+        }
+    }
+}
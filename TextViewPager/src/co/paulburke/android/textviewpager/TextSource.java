@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * The text to be paged, read in windows rather than held in memory as a
+ * single {@link CharSequence}. The {@link Paginator} reads the whole source
+ * once, in order, with {@link #scan(OnChunkListener)}, and the pages are read
+ * back with {@link #getText(int, int)}. Only the blocks of text around the
+ * pages being read stay in memory.<br>
+ * <br>
+ * Sources that read from a stream should be closed with {@link #close()} when
+ * they are no longer needed.
+ *
+ * @see #of(CharSequence)
+ * @see #fromAsset(Context, String, Charset)
+ * @see #fromUri(Context, Uri, Charset)
+ * @see #fromReader(Reader, File)
+ * @author paulburke (ipaulpro)
+ */
+public abstract class TextSource {
+
+    /**
+     * Listener for the chunks of text read by {@link TextSource#scan}.
+     */
+    public interface OnChunkListener {
+        /**
+         * Called with each chunk of the text, in order.
+         *
+         * @param chunk the text of the chunk.
+         * @param start the character offset of the chunk in the source.
+         * @return false to stop reading.
+         */
+        public boolean onChunk(CharSequence chunk, int start);
+    }
+
+    /**
+     * @return the number of characters in the source, or -1 if it is not
+     *         known until the source has been read with
+     *         {@link #scan(OnChunkListener)}.
+     */
+    public abstract int length();
+
+    /**
+     * @return an estimate of the number of characters in the source, or -1 if
+     *         there is none.
+     */
+    public int getEstimatedLength() {
+        return length();
+    }
+
+    /**
+     * Reads a window of the text. The window must have been read by
+     * {@link #scan(OnChunkListener)} already.
+     *
+     * @param start the character offset of the start of the window.
+     * @param end the character offset of the end of the window.
+     * @return the text of the window.
+     * @throws IOException if the source can't be read.
+     */
+    public abstract CharSequence getText(int start, int end) throws IOException;
+
+    /**
+     * Reads the whole text once, in order, delivering it in chunks. Text that
+     * has already been read is replayed before reading continues. This blocks,
+     * so it should not be called on the UI thread.
+     *
+     * @param listener notified of each chunk.
+     * @return true if the end of the text was reached, or false if the
+     *         listener stopped reading.
+     * @throws IOException if the source can't be read.
+     */
+    public abstract boolean scan(OnChunkListener listener) throws IOException;
+
+    /**
+     * @return the text as a single {@link CharSequence} if it is already held
+     *         in memory, or null.
+     */
+    public CharSequence asCharSequence() {
+        return null;
+    }
+
+    /**
+     * Releases any resources held by the source.
+     */
+    public void close() {
+    }
+
+    /**
+     * @param text the text.
+     * @return a source for text already held in memory.
+     */
+    public static TextSource of(CharSequence text) {
+        return new CharSequenceSource(text);
+    }
+
+    /**
+     * Creates a source for an asset. The asset is not opened until the source
+     * is scanned, so this can be called on the UI thread.
+     *
+     * @param context the context to get the assets from.
+     * @param path the path of the asset file.
+     * @param charset the character set of the file.
+     * @return a source for the asset file.
+     */
+    public static TextSource fromAsset(final Context context, final String path, Charset charset) {
+        final StreamTextSource.StreamOpener opener = new StreamTextSource.StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                return context.getAssets().open(path);
+            }
+
+            @Override
+            public long getLength() {
+                try {
+                    // Only uncompressed assets have a known length
+                    AssetFileDescriptor descriptor = context.getAssets().openFd(path);
+                    final long length = descriptor.getLength();
+                    descriptor.close();
+                    return length;
+                } catch (IOException e) {
+                    return -1;
+                }
+            }
+        };
+        return fromStream(context, opener, charset);
+    }
+
+    /**
+     * Creates a source for a content URI. The content resolver is not queried
+     * until the source is scanned, so this can be called on the UI thread.
+     *
+     * @param context the context to resolve the URI with.
+     * @param uri the content URI of the text.
+     * @param charset the character set of the content.
+     * @return a source for the content.
+     */
+    public static TextSource fromUri(final Context context, final Uri uri, Charset charset) {
+        final StreamTextSource.StreamOpener opener = new StreamTextSource.StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                final InputStream in = context.getContentResolver().openInputStream(uri);
+                if (in == null)
+                    throw new IOException("Unable to open " + uri);
+                return in;
+            }
+
+            @Override
+            public long getLength() {
+                long length = -1;
+                final Cursor cursor = context.getContentResolver().query(uri, new String[] {
+                        OpenableColumns.SIZE
+                }, null, null, null);
+                if (cursor != null) {
+                    if (cursor.moveToFirst() && !cursor.isNull(0))
+                        length = cursor.getLong(0);
+                    cursor.close();
+                }
+                return length;
+            }
+        };
+        return fromStream(context, opener, charset);
+    }
+
+    /**
+     * Creates a source from a reader that can only be read once. The text is
+     * copied to a file in {@code cacheDir} as it is read, so that pages can be
+     * read back later.
+     *
+     * @param reader the reader of the text.
+     * @param cacheDir the directory to copy the text to.
+     * @return a source for the reader.
+     */
+    public static TextSource fromReader(Reader reader, File cacheDir) {
+        return new SpooledTextSource(reader, cacheDir, null);
+    }
+
+    /**
+     * Creates a source from a stream that can only be read once.
+     *
+     * @param in the stream of the text.
+     * @param charset the character set of the stream.
+     * @param cacheDir the directory to copy the text to.
+     * @return a source for the stream.
+     * @see #fromReader(Reader, File)
+     */
+    public static TextSource fromInputStream(InputStream in, Charset charset, File cacheDir) {
+        return new SpooledTextSource(new InputStreamReader(in, charset), cacheDir, null);
+    }
+
+    private static TextSource fromStream(Context context, StreamTextSource.StreamOpener opener,
+            Charset charset) {
+        if (StreamTextSource.canReadBlocks(charset))
+            return new StreamTextSource(opener, charset);
+
+        // Blocks of other character sets can't be decoded on their own, so
+        // the text is copied to a file as UTF-8.
+        return new SpooledTextSource(new StreamTextSource.LazyReader(opener, charset),
+                context.getCacheDir(), opener);
+    }
+
+    /**
+     * A source for text that is already in memory.
+     */
+    private static class CharSequenceSource extends TextSource {
+
+        private final CharSequence mText;
+
+        CharSequenceSource(CharSequence text) {
+            mText = text;
+        }
+
+        @Override
+        public int length() {
+            return mText.length();
+        }
+
+        @Override
+        public CharSequence getText(int start, int end) {
+            return SpannedWindow.window(mText, start, end);
+        }
+
+        @Override
+        public boolean scan(OnChunkListener listener) {
+            return listener.onChunk(mText, 0);
+        }
+
+        @Override
+        public CharSequence asCharSequence() {
+            return mText;
+        }
+    }
+}
@@ -26,6 +26,9 @@ import android.util.AttributeSet;
 import android.util.Log;
 import android.widget.TextView;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A ViewPager that pages the provided text based on the available space. The
  * {@link PagerAdapter} is automatically created, as well as the necessary
@@ -36,6 +39,7 @@ import android.widget.TextView;
  * @see TextViewPagerAdapter
  * @see #setText(CharSequence)
  * @see #setText(int)
+ * @see #setTextSource(TextSource)
  * @author paulburke (ipaulpro)
  */
 public class TextViewPager extends DirectionalViewPager {
@@ -61,30 +65,92 @@ public class TextViewPager extends DirectionalViewPager {
         public void onPageCreated(int count);
     }
 
-    private final PagingLayoutListener.OnPageMeasureListener mMeasureListener = new PagingLayoutListener.OnPageMeasureListener() {
+    /**
+     * Listener that is also notified as batches of pages are created, before
+     * the whole text has been measured.
+     * {@link OnPageCreatedListener#onPageCreated(int)} signals that pagination
+     * is complete.
+     */
+    public interface OnPageBatchCreatedListener extends OnPageCreatedListener {
+        /**
+         * Called when another batch of pages has been measured and created.
+         *
+         * @param count the number of pages created so far.
+         * @param estimatedCount estimate of the total number of pages.
+         */
+        public void onPageBatchCreated(int count, int estimatedCount);
+    }
+
+    private final Paginator.OnAnchoredPageMeasureListener mMeasureListener = new Paginator.OnAnchoredPageMeasureListener() {
+        @Override
+        public void onAnchoredPageMeasure(int[] offsets, int measuredEnd, int anchorPage,
+                int estimatedFirstPage, int estimatedCount) {
+            if (DEBUG) Log.i(TAG, "onAnchoredPageMeasure pages count = " + offsets.length + ", anchorPage = " + anchorPage + ", estimatedFirstPage = " + estimatedFirstPage + ", estimatedCount = " + estimatedCount);
+
+            // The text may already have been measured past the anchor
+            if (mPagerAdapter == null || mPagerAdapter.getOffsets().length > 0)
+                return;
+
+            mPagerAdapter.setAnchoredOffsets(offsets, measuredEnd, estimatedFirstPage,
+                    estimatedCount);
+            setCurrentItem(estimatedFirstPage + anchorPage, false);
+        }
+
+        @Override
+        public void onPageBatchMeasure(int[] offsets, int measuredEnd, int estimatedCount) {
+            if (DEBUG) Log.i(TAG, "onPageBatchMeasure pages count = " + offsets.length + ", measuredEnd = " + measuredEnd + ", estimatedCount = " + estimatedCount);
+
+            if (mPagerAdapter != null && mPagerAdapter.isAnchored()) {
+                // Stay on the pages around the anchor until the text has been
+                // measured past the page being read
+                final int offset = getAnchoredOffset();
+                if (measuredEnd <= offset)
+                    return;
+                mRestoredOffset = offset;
+            }
+
+            if (mPagerAdapter != null) {
+                mPagerAdapter.setOffsets(offsets, measuredEnd);
+            }
+
+            if (mFollowingTail)
+                setCurrentItem(offsets.length - 1);
+
+            // Only restore once the page has been measured
+            if (mRestoredOffset > 0 && mRestoredOffset < measuredEnd)
+                restoreOffset();
+
+            if (mPageCreatedListener instanceof OnPageBatchCreatedListener)
+                ((OnPageBatchCreatedListener) mPageCreatedListener).onPageBatchCreated(
+                        offsets.length, estimatedCount);
+        }
+
         @Override
         public void onPageMeasure(int[] offsets, int totalLines, int linesPerPage) {
             if (DEBUG) Log.i(TAG, "onMeasure pages count = " + offsets.length+", totalLines = "+totalLines+", linesPerPage = "+linesPerPage);
 
             if (mPagerAdapter != null) {
+                if (mPagerAdapter.isAnchored())
+                    mRestoredOffset = getAnchoredOffset();
                 mPagerAdapter.setOffsets(offsets);
+                offsets = dropHistory(offsets);
             }
 
-            if (mRestoredOffset > 0) {
-                // Find the restored offset page
-                for (int i = 0; i < offsets.length; i++) {
-                    if (mRestoredOffset < offsets[i]) {
-                        setCurrentItem(i - 1, false);
-                        break;
-                    } else if (i == offsets.length - 1) {
-                        setCurrentItem(i, false);
-                    }
-                }
+            if (mRestoredOffset > 0)
+                restoreOffset();
+
+            if (mFollowingTail) {
+                mFollowingTail = false;
+                setCurrentItem(offsets.length - 1);
             }
 
             // Let the listener know that new pages were created
             if (mPageCreatedListener != null)
                 mPageCreatedListener.onPageCreated(offsets.length);
+
+            // Appended text would be paginated again in full on every append
+            if (mSpeculativePagination && !mPagerAdapter.isAppended())
+                startSpeculativePagination();
         }
     };
 
@@ -93,6 +159,13 @@ public class TextViewPager extends DirectionalViewPager {
 
     private int mRestoredOffset;
 
+    private boolean mSpeculativePagination;
+
+    private boolean mFollowTail;
+    private boolean mFollowingTail;
+    private int mMaxPages;
+    private final ArrayList<int[]> mSpeculativeSizes = new ArrayList<int[]>();
+
     public TextViewPager(Context context) {
         this(context, null);
     }
@@ -122,6 +195,17 @@ public class TextViewPager extends DirectionalViewPager {
         setAdapter(mPagerAdapter);
     }
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        // The view that measured the pages stops listening for layouts once
+        // they are measured, so tell it the pages have a new size
+        if (oldw > 0 && oldh > 0)
+            mPagerAdapter.onPageSizeChanged(w - getPaddingLeft() - getPaddingRight(),
+                    h - getPaddingTop() - getPaddingBottom());
+    }
+
     /**
      * @param text the text to be paged.
      * @attr {@link R.styleable#TextViewPager_android_text}
@@ -138,6 +222,130 @@ public class TextViewPager extends DirectionalViewPager {
         mPagerAdapter.setText(getContext().getResources().getText(resId));
     }
 
+    /**
+     * Moves to the page containing a character offset, such as where the text
+     * was last read. If the text has not been paginated yet, the pages around
+     * the offset are measured and shown first, at estimated positions, and
+     * the rest of the text is measured after.
+     *
+     * @param offset the character offset.
+     * @see TextViewPagerAdapter#setAnchor(int)
+     */
+    public void setCurrentOffset(int offset) {
+        mRestoredOffset = offset;
+        if (mPagerAdapter.isPaginationComplete())
+            restoreOffset();
+        else if (mPagerAdapter.getOffsets().length == 0)
+            mPagerAdapter.setAnchor(offset);
+    }
+
+    /**
+     * @return the fraction of the text before the current page, from 0 to 1.
+     * @see PageIndex#getProgress(int)
+     */
+    public float getCurrentProgress() {
+        final PageIndex index = mPagerAdapter.getPageIndex();
+        final int item = getCurrentItem();
+        return item < index.getPageCount() ? index.getProgress(item) : 0f;
+    }
+
+    /**
+     * Moves to the page containing the character at a fraction of the text,
+     * such as a position synced from another device.
+     *
+     * @param progress the fraction of the text, from 0 to 1.
+     */
+    public void setCurrentProgress(float progress) {
+        final PageIndex index = mPagerAdapter.getPageIndex();
+        if (index.getPageCount() > 0)
+            setCurrentItem(index.findPageAtProgress(progress), false);
+    }
+
+    /**
+     * Replaces the text with an edited version of it, measuring only the pages
+     * affected by the edit again.
+     *
+     * @param text the edited text.
+     * @param start the offset at which the text was edited.
+     * @param before the number of characters replaced at {@code start}.
+     * @param after the number of characters that replaced them.
+     * @see TextViewPagerAdapter#replaceText(CharSequence, int, int, int)
+     */
+    public void replaceText(CharSequence text, int start, int before, int after) {
+        mPagerAdapter.replaceText(text, start, before, after);
+    }
+
+    /**
+     * Appends text to the end of the text, for text that grows continuously
+     * such as a live transcript or log. Only the last pages are measured
+     * again, and new pages are added after the current one without moving
+     * it, unless following the tail.<br>
+     * <br>
+     * Plain text is appended without copying the text before it. Styled text
+     * keeps its spans, but the whole text is copied on each append.
+     *
+     * @param text the text to append.
+     * @see #setFollowTail(boolean)
+     * @see #setMaxPages(int)
+     */
+    public void appendText(CharSequence text) {
+        if (mFollowTail && getCurrentItem() >= mPagerAdapter.getCount() - 1)
+            mFollowingTail = true;
+        mPagerAdapter.appendText(text);
+    }
+
+    /**
+     * @return true if appended text is followed to the last page.
+     */
+    public boolean isFollowTail() {
+        return mFollowTail;
+    }
+
+    /**
+     * Sets whether the pager moves to the last page as text is appended, while
+     * the last page is the current one. Paging back stops following until the
+     * last page is reached again.
+     *
+     * @param followTail true to follow appended text.
+     */
+    public void setFollowTail(boolean followTail) {
+        mFollowTail = followTail;
+        if (!followTail)
+            mFollowingTail = false;
+    }
+
+    /**
+     * @return the number of pages kept of text that is appended to, or 0 for
+     *         no limit.
+     */
+    public int getMaxPages() {
+        return mMaxPages;
+    }
+
+    /**
+     * Limits the number of pages kept of text that is appended to. Once half
+     * as many pages again have been appended, the oldest pages are dropped
+     * along with their text, so dropping is not repeated on every append.
+     *
+     * @param maxPages the number of pages to keep, or 0 for no limit.
+     * @see #appendText(CharSequence)
+     */
+    public void setMaxPages(int maxPages) {
+        mMaxPages = Math.max(0, maxPages);
+    }
+
+    /**
+     * Pages text that is read from a source as needed, such as a large asset
+     * or a content URI, instead of being held in memory.
+     *
+     * @param source the source of the text to be paged.
+     * @see TextSource#fromAsset(Context, String, java.nio.charset.Charset)
+     * @see TextSource#fromUri(Context, android.net.Uri, java.nio.charset.Charset)
+     */
+    public void setTextSource(TextSource source) {
+        mPagerAdapter.setTextSource(source);
+    }
+
     /**
      * @param resId the resource identifier of the layout to use for the
      *            TextView
@@ -147,6 +355,131 @@ public class TextViewPager extends DirectionalViewPager {
         mPagerAdapter.setTextViewLayout(resId);
     }
 
+    /**
+     * Sets a cache for pagination results, so text that is shown again with
+     * the same layout settings doesn't have to be measured again.
+     *
+     * @param cache the cache to use, for example
+     *            {@link PaginationCache#create(Context)}, or null to disable
+     *            caching.
+     */
+    public void setPaginationCache(PaginationCache cache) {
+        mPagerAdapter.getPaginator().setCache(cache);
+    }
+
+    /**
+     * Sets a cache for the advances of the characters of plain text, so that
+     * paginating it again for another width, such as after a rotation,
+     * breaks lines without measuring the text.<br>
+     * <br>
+     * Page views draw the layouts made while paginating, which lines broken
+     * from the cache don't have, so the cache is only used while page views
+     * are disabled with {@link #setPageViewsEnabled(boolean)}. Page views are
+     * enabled by default. The cache is also unused from API 23, where lines
+     * are broken by rules it doesn't reproduce.
+     *
+     * @param cache the cache to use, or null to disable it.
+     * @see #setPageViewsEnabled(boolean)
+     */
+    public void setAdvanceCache(AdvanceCache cache) {
+        mPagerAdapter.getPaginator().setAdvanceCache(cache);
+    }
+
+    /**
+     * Sets how pages are broken, such as to avoid widows and orphans and to
+     * keep headings marked with a {@link KeepWithNextSpan} with the text
+     * after them. Applies the next time the text is paginated.
+     *
+     * @param breaker the page breaker, or null to fill each page with as
+     *            many lines as fit.
+     */
+    public void setPageBreaker(PageBreaker breaker) {
+        mPagerAdapter.getPaginator().setPageBreaker(breaker);
+    }
+
+    /**
+     * Enables paginating the text in the background for the sizes added with
+     * {@link #addSpeculativeSize(int, int)}, once the pages for the current
+     * size have been measured. The results are kept in
+     * the pagination caches, so the pages are ready if the pager is resized,
+     * for example on rotation. Changing the text or layout cancels it.
+     *
+     * @param enabled whether to paginate for other sizes.
+     */
+    public void setSpeculativePaginationEnabled(boolean enabled) {
+        mSpeculativePagination = enabled;
+        if (!enabled)
+            mPagerAdapter.getPaginator().cancelPrefetch();
+    }
+
+    /**
+     * Adds a size this pager is likely to be given, such as its size in the
+     * other orientation or a split-screen size, to paginate for when
+     * speculative pagination is enabled. The size must be the pager's own,
+     * after the system bars and any other views around it, or the pages
+     * measured for it won't be used.
+     *
+     * @param width the width of the pager.
+     * @param height the height of the pager.
+     * @see #setSpeculativePaginationEnabled(boolean)
+     */
+    public void addSpeculativeSize(int width, int height) {
+        mSpeculativeSizes.add(new int[] {
+                width, height
+        });
+    }
+
+    /**
+     * Removes all sizes added with {@link #addSpeculativeSize(int, int)}.
+     */
+    public void clearSpeculativeSizes() {
+        mSpeculativeSizes.clear();
+    }
+
+    /**
+     * @return the pool of page views kept for reuse, to tune its size and
+     *         check its hit rate.
+     */
+    public PageViewPool getPageViewPool() {
+        return mPagerAdapter.getPageViewPool();
+    }
+
+    /**
+     * @param enabled true to draw pages from the layouts made while
+     *            paginating, where possible.
+     * @see TextViewPagerAdapter#setPageViewsEnabled(boolean)
+     */
+    public void setPageViewsEnabled(boolean enabled) {
+        mPagerAdapter.setPageViewsEnabled(enabled);
+    }
+
+    private void startSpeculativePagination() {
+        final Paginator paginator = mPagerAdapter.getPaginator();
+        final PagingParams params = paginator.getParams();
+        final CharSequence text = mPagerAdapter.getText();
+        if (params == null || text == null || mSpeculativeSizes.isEmpty())
+            return;
+
+        // The size after a rotation depends on the system bars, so it is
+        // left to the app to add rather than guessed
+        final ArrayList<PagingParams> sizes = new ArrayList<PagingParams>();
+        for (int[] size : mSpeculativeSizes) {
+            addSpeculativeParams(sizes, params, size[0], size[1]);
+        }
+
+        if (DEBUG) Log.d(TAG, "startSpeculativePagination " + sizes);
+        paginator.prefetch(text, sizes);
+    }
+
+    private void addSpeculativeParams(List<PagingParams> list, PagingParams params,
+            int width, int height) {
+        final PagingParams sized = params.withViewSize(
+                width - getPaddingLeft() - getPaddingRight(),
+                height - getPaddingTop() - getPaddingBottom());
+        if (sized != null && !sized.equals(params) && !list.contains(sized))
+            list.add(sized);
+    }
+
     /**
      * @return the current {@link OnPageCreatedListener}.
      */
@@ -156,12 +489,53 @@ public class TextViewPager extends DirectionalViewPager {
 
     /**
      * @param mPageCreatedListener the listener to be notified when the pages
-     *            are created.
+     *            are created. If it is an {@link OnPageBatchCreatedListener},
+     *            it will also be notified of each batch of pages.
      */
     public void setOnPageCreatedListener(OnPageCreatedListener mPageCreatedListener) {
         this.mPageCreatedListener = mPageCreatedListener;
     }
 
+    /**
+     * Drops the oldest pages of appended text once there are too many.
+     *
+     * @return the offsets of the pages that are kept.
+     */
+    private int[] dropHistory(int[] offsets) {
+        if (mMaxPages == 0 || !mPagerAdapter.isAppended()
+                || offsets.length <= mMaxPages + Math.max(1, mMaxPages / 2))
+            return offsets;
+
+        final int count = offsets.length - mMaxPages;
+        final int item = getCurrentItem();
+        if (!mPagerAdapter.dropPages(count))
+            return offsets;
+
+        setCurrentItem(Math.max(0, item - count), false);
+        return mPagerAdapter.getOffsets();
+    }
+
+    /**
+     * Moves to the page containing the restored character offset.
+     */
+    private void restoreOffset() {
+        final int page = mPagerAdapter.getPageIndex().findPage(mRestoredOffset);
+        setCurrentItem(Math.max(0, page), false);
+        mRestoredOffset = 0;
+    }
+
+    /**
+     * @return the character offset to restore once the pages around the
+     *         anchor are replaced: the restored offset while it is still on
+     *         the current page, or else the start of the current page.
+     */
+    private int getAnchoredOffset() {
+        final int item = getCurrentItem();
+        final int offset = mPagerAdapter.getOffsetForPosition(item);
+        final int end = mPagerAdapter.getOffsetForPosition(item + 1);
+        return mRestoredOffset >= offset && mRestoredOffset < end ? mRestoredOffset : offset;
+    }
+
     @Override
     public Parcelable onSaveInstanceState() {
 
@@ -183,6 +557,10 @@ public class TextViewPager extends DirectionalViewPager {
             Bundle bundle = (Bundle) state;
             state = bundle.getParcelable(INSTANCE_STATE);
             mRestoredOffset = bundle.getInt(STATE_OFFSET);
+
+            // Measure the pages around the restored page first
+            if (mRestoredOffset > 0 && mPagerAdapter.getOffsets().length == 0)
+                mPagerAdapter.setAnchor(mRestoredOffset);
         }
 
         super.onRestoreInstanceState(state);
@@ -18,15 +18,26 @@ package co.paulburke.android.textviewpager;
 
 import android.content.Context;
 import android.support.v4.view.PagerAdapter;
+import android.text.Spanned;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.accessibility.AccessibilityManager;
 import android.widget.TextView;
 
+import java.util.Arrays;
+
 /**
  * A {@link PagerAdapter} that creates pages of text based on the available
- * space for each view.
+ * space for each view.<br>
+ * <br>
+ * Once the text has been paginated, pages are drawn by a {@link PageView} from
+ * the layouts the {@link Paginator} made, when the TextView layout allows it
+ * (see {@link #setPageViewsEnabled(boolean)}). Otherwise each page is a
+ * TextView that lays out its text again.
  *
  * @see PagingLayoutListener
  * @author paulburke (ipaulpro)
@@ -38,12 +49,32 @@ public class TextViewPagerAdapter extends PagerAdapter {
 
     private final Context mContext;
     private final PagingLayoutListener.OnPageMeasureListener mMeasureListener;
+    private final Paginator mPaginator = new Paginator();
+    private final PageViewPool mViewPool = new PageViewPool();
 
     private int[] mOffsets = new int[] {};
+    private int mMeasuredEnd = -1;
+    /** The index of the offsets, or null until it is needed. */
+    private PageIndex mIndex;
 
-    private CharSequence mText;
+    private TextSource mSource;
     private int mLayoutRes = -1;
     private int mCount = 1;
+    private int mVersion;
+    /** Whether text has been appended since the text was set. */
+    private boolean mAppended;
+    private boolean mPageViewsEnabled = true;
+    /** The view that measured the pages, which page views are styled after. */
+    private TextView mTemplate;
+    private AsyncPagingLayoutListener mLayoutListener;
+    /** The offset to measure the pages around first, or 0. */
+    private int mAnchor;
+    /** The pages around the anchor, until the text ahead of them is measured. */
+    private int[] mAnchorOffsets;
+    private int mAnchorEnd;
+    private int mAnchorPosition;
+    /** The pages in the pager, by position. */
+    private final SparseArray<View> mPages = new SparseArray<View>();
 
     LayoutInflater mInflater;
 
@@ -55,48 +86,79 @@ public class TextViewPagerAdapter extends PagerAdapter {
             PagingLayoutListener.OnPageMeasureListener listener, CharSequence text) {
         mContext = context;
         mMeasureListener = listener;
-        mText = text;
+        mSource = text != null ? TextSource.of(text) : null;
 
         mInflater = LayoutInflater.from(mContext);
+        mPaginator.setMemoryCache(PaginationMemoryCache.getInstance(context));
+        mPaginator.setRetainLayouts(mPageViewsEnabled);
     }
 
     @Override
-    public TextView instantiateItem(final ViewGroup container, final int position) {
-        TextView view = null;
+    public View instantiateItem(final ViewGroup container, final int position) {
+        if (mSource != null && mOffsets.length > 0) {
+            final PageView page = getPageView(position);
+            if (page != null) {
+                container.addView(page, 0);
+                mPages.put(position, page);
+                if (DEBUG) Log.d(TAG, "instantiateItem position = " + position + ", " + page);
+                return page;
+            }
+        }
 
-        if (mLayoutRes > 0)
-            view = (TextView) mInflater.inflate(mLayoutRes, container, false);
-        else
-            view = new TextView(mContext, null, R.attr.textViewPagerStyle);
+        TextView view = (TextView) mViewPool.acquire(mLayoutRes);
 
-        if (mText != null) {
+        if (view == null) {
+            if (mLayoutRes > 0)
+                view = (TextView) mInflater.inflate(mLayoutRes, container, false);
+            else
+                view = new TextView(mContext, null, R.attr.textViewPagerStyle);
+            view.setTag(R.id.text_view_pager_layout, mLayoutRes);
+        }
+
+        if (mSource != null) {
             int offset = 0;
-            int end = mText.length();
+            int end = mSource.length();
             int size = mOffsets.length;
-
-            if (size == 0) {
-                // Add the OnGlobalLayoutListener, which measures the text and
-                // reports paged character offsets if the text layout is taller
-                // than the container.
-                PagingLayoutListener listener = new PagingLayoutListener(view, mMeasureListener);
-                view.getViewTreeObserver().addOnGlobalLayoutListener(listener);
+            AsyncPagingLayoutListener listener = null;
+
+            if (size == 0 && mAnchorOffsets == null) {
+                // Add the OnGlobalLayoutListener, which paginates the text on
+                // a background thread once the view has been sized, and
+                // reports the paged character offsets.
+                listener = new AsyncPagingLayoutListener(view, mSource, mPaginator,
+                        mMeasureListener);
+                listener.attach();
+                view.setTag(R.id.text_view_pager_listener, listener);
+                listener.setAnchor(mAnchor);
+                mAnchor = 0;
+                mTemplate = view;
+                mLayoutListener = listener;
+
+                // Nothing is shown until the first page has been measured
+                end = 0;
 
             } else {
 
-                offset = mOffsets[position];
-                int lastPage = size - 1;
-
-                // Don't consider the last page measured, in case there is more
-                // text to be displayed.
-                if (position < lastPage)
-                    end = mOffsets[position + 1];
+                offset = getOffsetForPosition(position);
+                end = getPageEnd(position);
             }
 
-            final CharSequence sub = mText.subSequence(offset, end);
-            view.setText(sub != null ? sub : mContext.getText(R.string.unable_to_load_text));
+            PageTextLoader.setText(view, mSource, offset, end);
+            view.setTag(R.id.text_view_pager_version, mVersion);
             container.addView(view, 0);
+            mPages.put(position, view);
+
+            if (listener != null) {
+                // Show the first page without waiting for a layout pass, if
+                // the pager has already been measured.
+                listener.showFirstPage(
+                        container.getMeasuredWidth() - container.getPaddingLeft()
+                                - container.getPaddingRight(),
+                        container.getMeasuredHeight() - container.getPaddingTop()
+                                - container.getPaddingBottom());
+            }
 
-            if (DEBUG) Log.d(TAG, "instantiateItem position = " + position + ", offset = " + offset + ", end = " + end + ", text = " + sub);
+            if (DEBUG) Log.d(TAG, "instantiateItem position = " + position + ", offset = " + offset + ", end = " + end);
         }
 
         return view;
@@ -110,7 +172,22 @@ public class TextViewPagerAdapter extends PagerAdapter {
     @Override
     public void destroyItem(ViewGroup container, int position, Object object) {
         final View view = (View) object;
+
+        // The view that measured the pages is let go of while it is still
+        // attached, so its listener is removed from the window, and the
+        // listener goes on paginating edits without it
+        final AsyncPagingLayoutListener listener = (AsyncPagingLayoutListener) view
+                .getTag(R.id.text_view_pager_listener);
+        if (listener != null) {
+            listener.detach();
+            view.setTag(R.id.text_view_pager_listener, null);
+        }
+
+        PageTextLoader.cancel(view);
         container.removeView(view);
+        if (mPages.get(position) == view)
+            mPages.remove(position);
+        mViewPool.release((Integer) view.getTag(R.id.text_view_pager_layout), view);
     }
 
     @Override
@@ -118,19 +195,161 @@ public class TextViewPagerAdapter extends PagerAdapter {
         return view == object;
     }
 
+    @Override
+    public int getItemPosition(Object object) {
+        // The view measuring the pages is kept across edits of the text
+        final View view = (View) object;
+        if (mLayoutListener != null
+                && view.getTag(R.id.text_view_pager_listener) == mLayoutListener)
+            return POSITION_UNCHANGED;
+
+        // Pages created for a previous text or layout have to be replaced
+        final Object version = view.getTag(R.id.text_view_pager_version);
+        return Integer.valueOf(mVersion).equals(version) ? POSITION_UNCHANGED : POSITION_NONE;
+    }
+
     /**
-     * @return the text that is being displayed.
+     * @return the text that is being displayed, or null if it is not held in
+     *         memory.
      */
     public CharSequence getText() {
-        return mText;
+        return mSource != null ? mSource.asCharSequence() : null;
     }
 
     /**
      * @param text the text to display.
      */
     public void setText(CharSequence text) {
-        if (DEBUG) Log.i(TAG, "setText length = " + text.length());
-        mText = text;
+        if (DEBUG) Log.i(TAG, "setText length = " + (text != null ? text.length() : 0));
+        setTextSource(text != null ? TextSource.of(text) : null);
+    }
+
+    /**
+     * Replaces the text with an edited version of it, such as the same text
+     * with more appended. Pages before the edit are kept, and only the pages
+     * from the edit on are measured again, up to the first page that starts
+     * where it did before. Until then, the offsets of the pages after the
+     * edit are moved by the change in length.
+     *
+     * @param text the edited text.
+     * @param start the offset at which the text was edited.
+     * @param before the number of characters replaced at {@code start}.
+     * @param after the number of characters that replaced them.
+     */
+    public void replaceText(CharSequence text, int start, int before, int after) {
+        if (mLayoutListener == null || mSource == null || mSource.asCharSequence() == null) {
+            setText(text);
+            return;
+        }
+
+        if (DEBUG) Log.i(TAG, "replaceText start = " + start + ", before = " + before + ", after = " + after);
+        mSource = TextSource.of(text);
+
+        // Pages from the one before the edit are measured again
+        int stale = Arrays.binarySearch(mOffsets, start);
+        if (stale < 0)
+            stale = -stale - 2;
+        keepPages(stale - 2);
+
+        final int[] offsets = mOffsets.clone();
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = moveOffset(offsets[i], start, before, after);
+        }
+        mOffsets = offsets;
+        mIndex = null;
+        if (mMeasuredEnd >= 0)
+            mMeasuredEnd = moveOffset(mMeasuredEnd, start, before, after);
+
+        mLayoutListener.setEditedText(mSource, start, before, after);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Appends text to the end of the text, for text that grows continuously
+     * such as a transcript or log. The appended text is added to a
+     * {@link GrowingText}, without copying the text before it, and only the
+     * last pages are measured again.<br>
+     * <br>
+     * A growing text only keeps characters, so once either text has spans,
+     * their spans are kept by copying the whole text on each append instead.
+     *
+     * @param text the text to append.
+     * @see #replaceText(CharSequence, int, int, int)
+     */
+    public void appendText(CharSequence text) {
+        final CharSequence current = getText();
+        if (current == null) {
+            setText(hasSpans(text) ? text : GrowingText.of(text));
+        } else if (hasSpans(current) || hasSpans(text)) {
+            replaceText(TextUtils.concat(current, text), current.length(), 0, text.length());
+        } else {
+            final GrowingText grown = GrowingText.of(current).append(text);
+            replaceText(grown, current.length(), 0, text.length());
+        }
+        mAppended = true;
+    }
+
+    /**
+     * @return true if text has been appended with
+     *         {@link #appendText(CharSequence)} since the text was set.
+     */
+    boolean isAppended() {
+        return mAppended;
+    }
+
+    private static boolean hasSpans(CharSequence text) {
+        return text instanceof Spanned
+                && ((Spanned) text).getSpans(0, text.length(), Object.class).length > 0;
+    }
+
+    /**
+     * Drops the first pages of text that has been fully paginated, along with
+     * their text, to limit the history kept of a growing text. The positions
+     * of the rest of the pages move down by {@code count}.
+     *
+     * @param count the number of pages to drop.
+     * @return true if the pages were dropped; false if pagination is still
+     *         running or there are not enough pages.
+     */
+    public boolean dropPages(int count) {
+        final CharSequence text = getText();
+        if (count <= 0 || text == null || mLayoutListener == null
+                || !isPaginationComplete() || mPaginator.isRunning()
+                || count >= mOffsets.length)
+            return false;
+
+        if (DEBUG) Log.i(TAG, "dropPages count = " + count);
+        final CharSequence kept = text.subSequence(mOffsets[count], text.length());
+        mSource = TextSource.of(kept);
+        mOffsets = mPaginator.dropPages(mSource, count);
+        mIndex = mPaginator.getPageIndex();
+        mCount = mOffsets.length;
+
+        // Every page moves to a new position
+        keepPages(-1);
+        mLayoutListener.setTextSource(mSource,
+                mOffsets.length > 1 ? mOffsets[1] : kept.length());
+        notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * @return the source of the text that is being displayed.
+     */
+    public TextSource getTextSource() {
+        return mSource;
+    }
+
+    /**
+     * Sets the source of the text to display. The source is not closed when
+     * it is replaced.
+     *
+     * @param source the source of the text to display.
+     */
+    public void setTextSource(TextSource source) {
+        mSource = source;
+        mAppended = false;
+        reset();
         notifyDataSetChanged();
     }
 
@@ -147,6 +366,8 @@ public class TextViewPagerAdapter extends PagerAdapter {
      */
     public void setTextViewLayout(int resId) {
         mLayoutRes = resId;
+        mPaginator.setLayoutResource(resId);
+        reset();
         notifyDataSetChanged();
     }
 
@@ -154,11 +375,128 @@ public class TextViewPagerAdapter extends PagerAdapter {
      * @param offsets array containing the character offsets for each page.
      */
     public void setOffsets(int[] offsets) {
+        setOffsets(offsets, -1);
+    }
+
+    /**
+     * Sets the offsets of the pages measured so far, while the rest of the
+     * text is still being paginated. The count grows with each call.
+     *
+     * @param offsets array containing the character offsets for each page.
+     * @param measuredEnd the character offset the last page ends at, or -1 if
+     *            it runs to the end of the text.
+     */
+    public void setOffsets(int[] offsets, int measuredEnd) {
+        if (mAnchorOffsets != null) {
+            // The pages around the anchor may have broken at other lines
+            mAnchorOffsets = null;
+            mVersion++;
+        }
         mOffsets = offsets;
-        mCount = mOffsets.length;
+        mMeasuredEnd = measuredEnd;
+        mCount = Math.max(1, mOffsets.length);
+
+        // The paginator indexes the offsets it delivers as it measures them
+        final PageIndex index = mPaginator.getPageIndex();
+        mIndex = index != null && index.getPageCount() == offsets.length
+                && (offsets.length == 0
+                        || index.getPageStart(offsets.length - 1) == offsets[offsets.length - 1])
+                ? index : null;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Sets an offset to measure the pages around before the rest of the text,
+     * the next time the text is paginated, such as where it was last read.
+     *
+     * @param offset the character offset, or 0 to paginate from the start.
+     * @see AsyncPagingLayoutListener#setAnchor(int)
+     */
+    public void setAnchor(int offset) {
+        if (mLayoutListener != null)
+            mLayoutListener.setAnchor(offset);
+        else
+            mAnchor = offset;
+    }
+
+    /**
+     * Shows the pages around the anchor, before the text ahead of them has
+     * been measured. The pages are placed at their estimated positions, and
+     * the pages between the first page and them are left empty until
+     * {@link #setOffsets(int[], int)} replaces them all.
+     *
+     * @param offsets the character offsets of the pages around the anchor.
+     * @param measuredEnd the character offset the last of them ends at.
+     * @param firstPosition the estimated position of the first of them.
+     * @param estimatedCount the estimated number of pages.
+     * @see Paginator.OnAnchoredPageMeasureListener
+     */
+    public void setAnchoredOffsets(int[] offsets, int measuredEnd, int firstPosition,
+            int estimatedCount) {
+        mAnchorOffsets = offsets;
+        mAnchorEnd = measuredEnd;
+        mAnchorPosition = firstPosition;
+        mCount = Math.max(estimatedCount, firstPosition + offsets.length);
         notifyDataSetChanged();
     }
 
+    /**
+     * @return true if the pages shown are those around the anchor, whose
+     *         positions are estimates.
+     */
+    public boolean isAnchored() {
+        return mAnchorOffsets != null;
+    }
+
+    /**
+     * @return true if all the pages of the text have been measured.
+     */
+    public boolean isPaginationComplete() {
+        return mOffsets.length > 0 && mMeasuredEnd < 0;
+    }
+
+    /**
+     * @return true if pages are drawn by a {@link PageView} when possible.
+     */
+    public boolean isPageViewsEnabled() {
+        return mPageViewsEnabled;
+    }
+
+    /**
+     * Sets whether pages are drawn by a {@link PageView} from the layouts made
+     * while paginating, instead of a TextView that lays out the page again.
+     * The layouts of the whole text are kept in memory to do so. Page views
+     * are only used for text held in memory that was paginated rather than
+     * found in a cache, other than a {@link MappedText} or
+     * {@link CompressedText}, and for TextView layouts that
+     * {@link PageView#canReplace(TextView)}. An {@link AdvanceCache} set on
+     * the paginator is only used while page views are disabled. Enabled by
+     * default.
+     *
+     * @param enabled true to draw pages with page views.
+     */
+    public void setPageViewsEnabled(boolean enabled) {
+        mPageViewsEnabled = enabled;
+        mPaginator.setRetainLayouts(enabled);
+        reset();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * @return the pool of page views kept for reuse, to tune its size and
+     *         check its hit rate.
+     */
+    public PageViewPool getPageViewPool() {
+        return mViewPool;
+    }
+
+    /**
+     * @return the {@link Paginator} that measures the pages.
+     */
+    public Paginator getPaginator() {
+        return mPaginator;
+    }
+
     /**
      * @return array containing the character offsets for each page.
      */
@@ -166,12 +504,133 @@ public class TextViewPagerAdapter extends PagerAdapter {
         return mOffsets;
     }
 
+    /**
+     * @return an index of the character offsets of the pages, to find the
+     *         page containing an offset without searching them in full.
+     */
+    public PageIndex getPageIndex() {
+        if (mIndex == null)
+            mIndex = PageIndex.of(mOffsets, mMeasuredEnd >= 0 ? mMeasuredEnd
+                    : Math.max(0, mSource != null ? mSource.length() : 0));
+        return mIndex;
+    }
+
     /**
      * @param position position in the adapter to get the character offset from.
      * @return the character offset from the current page.
      */
     public int getOffsetForPosition(int position) {
-        return mOffsets[position];
+        if (mAnchorOffsets != null) {
+            // Pages not yet measured are placed either side of the anchor
+            final int index = position - mAnchorPosition;
+            if (index < 0)
+                return 0;
+            return index < mAnchorOffsets.length ? mAnchorOffsets[index] : mAnchorEnd;
+        }
+        return position < mOffsets.length ? mOffsets[position] : 0;
+    }
+
+    /**
+     * @return the character offset the page ends at.
+     */
+    private int getPageEnd(int position) {
+        if (mAnchorOffsets != null) {
+            final int index = position - mAnchorPosition;
+            if (index < 0)
+                return 0;
+            return index < mAnchorOffsets.length - 1 ? mAnchorOffsets[index + 1] : mAnchorEnd;
+        }
+
+        // Don't consider the last page measured, in case there is more text
+        // to be displayed, unless pagination is still running.
+        if (position < mOffsets.length - 1)
+            return mOffsets[position + 1];
+        return mMeasuredEnd >= 0 ? mMeasuredEnd : mSource.length();
+    }
+
+    /**
+     * @return a page view drawing the lines of the page, or null if the page
+     *         has to be a TextView.
+     */
+    private PageView getPageView(int position) {
+        final DocumentLayout document = mPaginator.getDocumentLayout();
+        if (!mPageViewsEnabled || document == null || mTemplate == null
+                || !PageView.canReplace(mTemplate))
+            return null;
+
+        final int offset = mOffsets[position];
+        final int end = getPageEnd(position);
+        final DocumentLayout.Slice slice = document.slice(offset, end);
+        if (slice == null)
+            return null;
+
+        PageView view = (PageView) mViewPool.acquire(PageViewPool.PAGE_VIEW);
+        if (view == null) {
+            view = new PageView(mContext);
+            view.setTag(R.id.text_view_pager_layout, PageViewPool.PAGE_VIEW);
+        }
+        view.copyStyle(mTemplate);
+        view.setSlice(slice);
+        view.setTag(R.id.text_view_pager_version, mVersion);
+
+        // The page has no text of its own to be read out
+        final AccessibilityManager accessibility = (AccessibilityManager) mContext
+                .getSystemService(Context.ACCESSIBILITY_SERVICE);
+        if (accessibility.isEnabled()) {
+            PageTextLoader.setContentDescription(view, mSource, offset, end);
+        } else {
+            PageTextLoader.cancel(view);
+            view.setContentDescription(null);
+        }
+        return view;
+    }
+
+    /**
+     * Starts a new version of the pages, keeping the pages up to the given
+     * position, whose text hasn't changed.
+     */
+    private void keepPages(int lastPosition) {
+        mVersion++;
+        for (int i = 0; i < mPages.size(); i++) {
+            if (mPages.keyAt(i) <= lastPosition)
+                mPages.valueAt(i).setTag(R.id.text_view_pager_version, mVersion);
+        }
+    }
+
+    private static int moveOffset(int offset, int start, int before, int after) {
+        if (offset >= start + before)
+            return offset + after - before;
+        return Math.min(offset, start);
+    }
+
+    /**
+     * Discards the measured pages so the text is paginated again.
+     */
+    private void reset() {
+        mPaginator.cancel();
+        mPaginator.cancelPrefetch();
+        mOffsets = new int[] {};
+        mMeasuredEnd = -1;
+        mIndex = null;
+        mAnchorOffsets = null;
+        mCount = 1;
+        mVersion++;
+        mTemplate = null;
+        if (mLayoutListener != null)
+            mLayoutListener.detach();
+        mLayoutListener = null;
+    }
+
+    /**
+     * Paginates the text again for a new size of the pages, once it has been
+     * paginated.
+     *
+     * @param width the new width of each page.
+     * @param height the new height of each page.
+     */
+    void onPageSizeChanged(int width, int height) {
+        if (mLayoutListener != null)
+            mLayoutListener.setViewSize(width, height);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2013 Paul Burke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.paulburke.android.textviewpager;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the UTF-16 characters of UTF-8 bytes, without decoding
+ * them up front. The byte offset of every {@link #INTERVAL}th character is
+ * recorded in a single pass, so finding any character only decodes from the
+ * nearest checkpoint. The position of the last access is remembered, so
+ * reading forwards from it is as cheap as decoding.<br>
+ * <br>
+ * Malformed bytes decode to U+FFFD, one character per byte. The buffer is
+ * only read with absolute gets, so an index is safe to use from several
+ * threads.
+ *
+ * @author paulburke (ipaulpro)
+ */
+final class Utf8Index {
+
+    /** Number of characters between checkpoints. */
+    static final int INTERVAL = 4096;
+
+    /** Characters walked before the last position is remembered. */
+    private static final int REMEMBER_DISTANCE = 64;
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final ByteBuffer mBytes;
+    private final int mLength;
+    /**
+     * Character offset of each checkpoint: the first code point at or after
+     * each multiple of the interval.
+     */
+    private final int[] mCharCheckpoints;
+    /** Byte offset of each checkpoint. */
+    private final int[] mByteCheckpoints;
+
+    /** The last position found, replaced whole so other threads see all of it. */
+    private volatile Position mLast;
+
+    private static final class Position {
+        final int charOffset;
+        final int byteOffset;
+
+        Position(int charOffset, int byteOffset) {
+            this.charOffset = charOffset;
+            this.byteOffset = byteOffset;
+        }
+    }
+
+    private Utf8Index(ByteBuffer bytes, int length, int[] charCheckpoints,
+            int[] byteCheckpoints) {
+        mBytes = bytes;
+        mLength = length;
+        mCharCheckpoints = charCheckpoints;
+        mByteCheckpoints = byteCheckpoints;
+        mLast = new Position(0, 0);
+    }
+
+    /**
+     * Indexes the bytes from index 0 to the limit of the buffer. This reads
+     * every byte once.
+     *
+     * @param bytes the UTF-8 bytes, which must not change afterwards.
+     * @return the index.
+     */
+    static Utf8Index build(ByteBuffer bytes) {
+        final int limit = bytes.limit();
+        int[] chars = new int[limit / INTERVAL + 2];
+        int[] offsets = new int[chars.length];
+        int count = 0;
+
+        int charOffset = 0;
+        int byteOffset = 0;
+        int next = 0;
+        while (byteOffset < limit) {
+            if (charOffset >= next) {
+                if (count == chars.length) {
+                    chars = grow(chars);
+                    offsets = grow(offsets);
+                }
+                chars[count] = charOffset;
+                offsets[count] = byteOffset;
+                count++;
+                next += INTERVAL;
+            }
+
+            final int length = sequenceLength(bytes, byteOffset, limit);
+            charOffset += length == 4 ? 2 : 1;
+            byteOffset += length;
+        }
+
+        if (count == 0) {
+            chars = new int[] {
+                    0
+            };
+            offsets = new int[] {
+                    0
+            };
+            count = 1;
+        }
+
+        return new Utf8Index(bytes, charOffset, trim(chars, count), trim(offsets, count));
+    }
+
+    /**
+     * @return the number of UTF-16 characters.
+     */
+    int length() {
+        return mLength;
+    }
+
+    /**
+     * @return the number of bytes indexed.
+     */
+    int byteLength() {
+        return mBytes.limit();
+    }
+
+    char charAt(int index) {
+        if (index < 0 || index >= mLength)
+            throw new IndexOutOfBoundsException("index = " + index + ", length = " + mLength);
+
+        final long position = seek(index);
+        final int codePoint = decode(mBytes, byteOffset(position), mBytes.limit());
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT)
+            return (char) codePoint;
+        return index == charOffset(position) ? highSurrogate(codePoint)
+                : lowSurrogate(codePoint);
+    }
+
+    /**
+     * Decodes the characters from {@code start} to {@code end} into
+     * {@code dest}.
+     */
+    void getChars(int start, int end, char[] dest, int destOffset) {
+        if (start < 0 || end > mLength || start > end)
+            throw new IndexOutOfBoundsException("start = " + start + ", end = " + end
+                    + ", length = " + mLength);
+        if (start == end)
+            return;
+
+        final long position = seek(start);
+        final int limit = mBytes.limit();
+        int charOffset = charOffset(position);
+        int byteOffset = byteOffset(position);
+        int d = destOffset;
+
+        while (charOffset < end) {
+            final int length = sequenceLength(mBytes, byteOffset, limit);
+            final int codePoint = decode(mBytes, byteOffset, limit);
+            if (length == 4) {
+                if (charOffset >= start)
+                    dest[d++] = highSurrogate(codePoint);
+                if (charOffset + 1 < end)
+                    dest[d++] = lowSurrogate(codePoint);
+                charOffset += 2;
+            } else {
+                dest[d++] = (char) codePoint;
+                charOffset++;
+            }
+            byteOffset += length;
+        }
+
+        if (byteOffset < limit)
+            mLast = new Position(charOffset, byteOffset);
+    }
+
+    /**
+     * @return the byte offset of the code point containing the character.
+     */
+    int byteOffsetOf(int index) {
+        if (index == mLength)
+            return mBytes.limit();
+        return byteOffset(seek(index));
+    }
+
+    /**
+     * Finds the code point containing the character, starting from the last
+     * position found if that is closer than the nearest checkpoint.
+     *
+     * @return the character and byte offsets of the code point, packed with
+     *         {@link #pack(int, int)}.
+     */
+    private long seek(int index) {
+        int checkpoint = index / INTERVAL;
+        if (checkpoint >= mCharCheckpoints.length)
+            checkpoint = mCharCheckpoints.length - 1;
+        if (mCharCheckpoints[checkpoint] > index)
+            checkpoint--;
+
+        int charOffset = mCharCheckpoints[checkpoint];
+        int byteOffset = mByteCheckpoints[checkpoint];
+
+        final Position last = mLast;
+        if (last.charOffset <= index && last.charOffset > charOffset) {
+            charOffset = last.charOffset;
+            byteOffset = last.byteOffset;
+        }
+        final int from = charOffset;
+
+        final int limit = mBytes.limit();
+        while (true) {
+            final int length = sequenceLength(mBytes, byteOffset, limit);
+            final int chars = length == 4 ? 2 : 1;
+            if (charOffset + chars > index)
+                break;
+            charOffset += chars;
+            byteOffset += length;
+        }
+
+        // Reading forwards a character at a time shouldn't allocate for each
+        if (charOffset - from >= REMEMBER_DISTANCE)
+            mLast = new Position(charOffset, byteOffset);
+        return pack(charOffset, byteOffset);
+    }
+
+    private static long pack(int charOffset, int byteOffset) {
+        return ((long) charOffset << 32) | (byteOffset & 0xFFFFFFFFL);
+    }
+
+    private static int charOffset(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int byteOffset(long position) {
+        return (int) position;
+    }
+
+    /**
+     * @return the number of bytes of the code point at the offset, which is
+     *         1 for malformed input.
+     */
+    static int sequenceLength(ByteBuffer bytes, int offset, int limit) {
+        final int b0 = bytes.get(offset) & 0xFF;
+        if (b0 < 0x80)
+            return 1;
+        if (b0 >= 0xC2 && b0 < 0xE0)
+            return isContinuation(bytes, offset + 1, limit) ? 2 : 1;
+        if (b0 >= 0xE0 && b0 < 0xF0) {
+            if (!isContinuation(bytes, offset + 1, limit)
+                    || !isContinuation(bytes, offset + 2, limit))
+                return 1;
+            final int codePoint = decode3(bytes, offset);
+            return codePoint < 0x800 || (codePoint >= 0xD800 && codePoint < 0xE000) ? 1 : 3;
+        }
+        if (b0 >= 0xF0 && b0 < 0xF5) {
+            if (!isContinuation(bytes, offset + 1, limit)
+                    || !isContinuation(bytes, offset + 2, limit)
+                    || !isContinuation(bytes, offset + 3, limit))
+                return 1;
+            final int codePoint = decode4(bytes, offset);
+            return codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT
+                    || codePoint > Character.MAX_CODE_POINT ? 1 : 4;
+        }
+        return 1;
+    }
+
+    /**
+     * @return the code point at the offset, or U+FFFD for malformed input.
+     */
+    static int decode(ByteBuffer bytes, int offset, int limit) {
+        final int b0 = bytes.get(offset) & 0xFF;
+        if (b0 < 0x80)
+            return b0;
+
+        switch (sequenceLength(bytes, offset, limit)) {
+            case 2:
+                return ((b0 & 0x1F) << 6) | (bytes.get(offset + 1) & 0x3F);
+            case 3:
+                return decode3(bytes, offset);
+            case 4:
+                return decode4(bytes, offset);
+            default:
+                return REPLACEMENT;
+        }
+    }
+
+    private static int decode3(ByteBuffer bytes, int offset) {
+        return ((bytes.get(offset) & 0x0F) << 12) | ((bytes.get(offset + 1) & 0x3F) << 6)
+                | (bytes.get(offset + 2) & 0x3F);
+    }
+
+    private static int decode4(ByteBuffer bytes, int offset) {
+        return ((bytes.get(offset) & 0x07) << 18) | ((bytes.get(offset + 1) & 0x3F) << 12)
+                | ((bytes.get(offset + 2) & 0x3F) << 6) | (bytes.get(offset + 3) & 0x3F);
+    }
+
+    private static boolean isContinuation(ByteBuffer bytes, int offset, int limit) {
+        return offset < limit && (bytes.get(offset) & 0xC0) == 0x80;
+    }
+
+    private static char highSurrogate(int codePoint) {
+        return (char) ((codePoint >>> 10) + (Character.MIN_HIGH_SURROGATE
+                - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10)));
+    }
+
+    private static char lowSurrogate(int codePoint) {
+        return (char) ((codePoint & 0x3FF) + Character.MIN_LOW_SURROGATE);
+    }
+
+    private static int[] grow(int[] array) {
+        final int[] copy = new int[array.length * 2];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    private static int[] trim(int[] array, int count) {
+        if (array.length == count)
+            return array;
+        final int[] copy = new int[count];
+        System.arraycopy(array, 0, copy, 0, count);
+        return copy;
+    }
+}
@@ -4,6 +4,7 @@ package co.paulburke.android.textviewpagerexample;
 import android.app.Activity;
 import android.os.Bundle;
 
+import co.paulburke.android.textviewpager.PaginationCache;
 import co.paulburke.android.textviewpager.TextViewPager;
 
 public class BasicHorizontalActivity extends Activity {
@@ -15,6 +16,8 @@ public class BasicHorizontalActivity extends Activity {
         TextViewPager pager = new TextViewPager(this);
         // Needed for restoring state
         pager.setId(R.id.pager);
+        // Remember the pages between launches
+        pager.setPaginationCache(PaginationCache.create(this));
         // Set the text on the pager, itself
         pager.setText(R.string.lipsum);
 
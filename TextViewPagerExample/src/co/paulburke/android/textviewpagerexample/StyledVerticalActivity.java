@@ -22,13 +22,14 @@ import android.support.v4.view.ViewPager.SimpleOnPageChangeListener;
 import android.widget.TextView;
 
 import co.paulburke.android.textviewpager.TextViewPager;
-import co.paulburke.android.textviewpager.TextViewPager.OnPageCreatedListener;
+import co.paulburke.android.textviewpager.TextViewPager.OnPageBatchCreatedListener;
 import co.paulburke.android.textviewpager.TextViewPagerIndicator;
 
 public class StyledVerticalActivity extends Activity {
 
     private TextView mNumber;
     private TextViewPager mPager;
+    private int mEstimatedCount;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,10 +40,19 @@ public class StyledVerticalActivity extends Activity {
         mNumber = (TextView) findViewById(R.id.page_number);
 
         mPager = (TextViewPager) findViewById(R.id.pager);
+        // Have the pages ready for the other orientation
+        mPager.setSpeculativePaginationEnabled(true);
         // We don't know how many pages there are until we've measured
-        mPager.setOnPageCreatedListener(new OnPageCreatedListener() {
+        mPager.setOnPageCreatedListener(new OnPageBatchCreatedListener() {
+            @Override
+            public void onPageBatchCreated(int count, int estimatedCount) {
+                mEstimatedCount = estimatedCount;
+                setPageNumber(mPager.getCurrentItem());
+            }
+
             @Override
             public void onPageCreated(int count) {
+                mEstimatedCount = 0;
                 setPageNumber(mPager.getCurrentItem());
             }
         });
@@ -59,7 +69,12 @@ public class StyledVerticalActivity extends Activity {
     }
 
     private void setPageNumber(int position) {
-        mNumber.setText(getString(R.string.page_number, position + 1,
-                mPager.getAdapter().getCount()));
+        if (mEstimatedCount > 0) {
+            mNumber.setText(getString(R.string.page_number_estimate, position + 1,
+                    mEstimatedCount));
+        } else {
+            mNumber.setText(getString(R.string.page_number, position + 1,
+                    mPager.getAdapter().getCount()));
+        }
     }
 }